@@ -0,0 +1,175 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
+import se.curity.identityserver.sdk.config.annotation.DefaultEnum;
+import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
+import se.curity.identityserver.sdk.service.AccountManager;
+import se.curity.identityserver.sdk.service.SessionManager;
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Builds an action configuration which answers every setting with its declared default, unless overridden, the way
+ * the server does for an action configured with no more than the required services.
+ */
+public final class BenchmarkConfiguration
+{
+    private final Map<String, Object> _settings = new HashMap<>();
+
+    public BenchmarkConfiguration(AccountManager accountManager,
+                                  AuthenticatorDescriptorFactory authenticatorDescriptorFactory,
+                                  SessionManager sessionManager)
+    {
+        _settings.put("getAccountManager", accountManager);
+        _settings.put("getAuthenticatorDescriptorFactory", authenticatorDescriptorFactory);
+        _settings.put("getSessionManager", sessionManager);
+        _settings.put("id", "opt-in-mfa-benchmark");
+    }
+
+    /**
+     * @param getterName the name of the getter in {@link OptInMFAAuthenticationActionConfig}, such as
+     *                   {@code isSecondFactorsCacheEnabled}.
+     */
+    public BenchmarkConfiguration with(String getterName, Object value)
+    {
+        _settings.put(getterName, value);
+
+        return this;
+    }
+
+    /**
+     * Like {@link #with(String, Object)}, converting the value from text to the type the getter returns.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BenchmarkConfiguration withParsed(String getterName, String value)
+    {
+        Class<?> type;
+
+        try
+        {
+            type = OptInMFAAuthenticationActionConfig.class.getMethod(getterName).getReturnType();
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new IllegalArgumentException("No such setting: " + getterName, e);
+        }
+
+        if (type == int.class)
+        {
+            return with(getterName, Integer.parseInt(value));
+        }
+
+        if (type == boolean.class)
+        {
+            return with(getterName, Boolean.parseBoolean(value));
+        }
+
+        if (type.isEnum())
+        {
+            return with(getterName, Enum.valueOf((Class) type, value));
+        }
+
+        if (type == Optional.class)
+        {
+            return with(getterName, Optional.of(value));
+        }
+
+        if (type == List.class)
+        {
+            return with(getterName, Arrays.asList(value.split(",")));
+        }
+
+        return with(getterName, value);
+    }
+
+    /**
+     * Resolves every setting of {@link OptInMFAAuthenticationActionConfig}, or its declared default, once, so that a
+     * setting added to the interface is picked up here without any change, and a call on the configuration is no more
+     * than a lookup of the value.
+     *
+     * @throws UnsupportedOperationException if a setting has neither a value nor a default.
+     */
+    public OptInMFAAuthenticationActionConfig build()
+    {
+        Map<Method, Object> values = new HashMap<>();
+
+        for (Method method : OptInMFAAuthenticationActionConfig.class.getMethods())
+        {
+            if (method.getParameterCount() == 0 && !method.isDefault() && !Modifier.isStatic(method.getModifiers()))
+            {
+                values.put(method, _settings.containsKey(method.getName())
+                        ? _settings.get(method.getName())
+                        : defaultValue(method));
+            }
+        }
+
+        return StandIns.of(OptInMFAAuthenticationActionConfig.class, (self, method, arguments) -> {
+            @Nullable Object value = values.get(method);
+
+            if (value == null)
+            {
+                throw StandIns.unsupported(method);
+            }
+
+            return value;
+        });
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object defaultValue(Method method)
+    {
+        Class<?> type = method.getReturnType();
+
+        if (method.isAnnotationPresent(DefaultInteger.class))
+        {
+            return method.getAnnotation(DefaultInteger.class).value();
+        }
+
+        if (method.isAnnotationPresent(DefaultBoolean.class))
+        {
+            return method.getAnnotation(DefaultBoolean.class).value();
+        }
+
+        if (method.isAnnotationPresent(DefaultEnum.class))
+        {
+            return Enum.valueOf((Class) type, method.getAnnotation(DefaultEnum.class).value());
+        }
+
+        if (type == Optional.class)
+        {
+            return Optional.empty();
+        }
+
+        if (type == List.class)
+        {
+            return Collections.emptyList();
+        }
+
+        throw StandIns.unsupported(method);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An account store holding users which each have a number of registered second factors. Users are added before the
+ * store is used, after which it may be used by many threads at once.
+ */
+public final class InMemoryAccountManager
+{
+    private final Map<String, AccountAttributes> _accounts = new HashMap<>();
+    private final LongAdder _lookupCount = new LongAdder();
+    private final AccountManager _accountManager;
+    private volatile long _latencyNanos;
+
+    public InMemoryAccountManager()
+    {
+        _accountManager = StandIns.of(AccountManager.class, (self, method, arguments) -> {
+            if ("getByUserName".equals(method.getName()))
+            {
+                _lookupCount.increment();
+                StandIns.pause(_latencyNanos);
+                return _accounts.get((String) arguments[0]);
+            }
+
+            throw StandIns.unsupported(method);
+        });
+    }
+
+    /**
+     * Adds a user whose second factors are the first {@code factorCount} of the given ACRs.
+     */
+    public void addUser(String subject, String[] acrs, int factorCount)
+    {
+        Map<String, Object> secondFactors = new LinkedHashMap<>(factorCount);
+
+        for (int i = 0; i < factorCount; i++)
+        {
+            secondFactors.put("My factor " + i, acrs[i]);
+        }
+
+        Map<String, Object> account = new HashMap<>(4);
+        account.put("id", subject);
+        account.put("subject", subject);
+        account.put("secondFactors", secondFactors);
+
+        _accounts.put(subject, AccountAttributes.fromMap(account));
+    }
+
+    /**
+     * Makes every lookup take at least the given time, as a lookup in a remote account store would.
+     */
+    public void setLatency(long latency, TimeUnit unit)
+    {
+        _latencyNanos = unit.toNanos(latency);
+    }
+
+    public AccountManager getAccountManager()
+    {
+        return _accountManager;
+    }
+
+    public long getLookupCount()
+    {
+        return _lookupCount.sum();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import se.curity.identityserver.sdk.NonEmptyList;
+import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException;
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor;
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A descriptor factory knowing a fixed set of configured authenticators.
+ */
+public final class InMemoryAuthenticatorDescriptorFactory
+{
+    private final Map<String, NonEmptyList<AuthenticatorDescriptor>> _descriptors = new HashMap<>();
+    private final LongAdder _lookupCount = new LongAdder();
+    private final AuthenticatorDescriptorFactory _factory;
+    private volatile long _latencyNanos;
+
+    public InMemoryAuthenticatorDescriptorFactory(String... configuredAcrs)
+    {
+        for (String acr : configuredAcrs)
+        {
+            _descriptors.put(acr, NonEmptyList.of(descriptor(acr)));
+        }
+
+        _factory = new Factory();
+    }
+
+    public static AuthenticatorDescriptor descriptor(String acr)
+    {
+        return new Descriptor(acr);
+    }
+
+    /**
+     * Makes every lookup take at least the given time.
+     */
+    public void setLatency(long latency, TimeUnit unit)
+    {
+        _latencyNanos = unit.toNanos(latency);
+    }
+
+    public AuthenticatorDescriptorFactory getFactory()
+    {
+        return _factory;
+    }
+
+    public long getLookupCount()
+    {
+        return _lookupCount.sum();
+    }
+
+    private final class Factory implements AuthenticatorDescriptorFactory
+    {
+        @Override
+        public NonEmptyList<AuthenticatorDescriptor> getAuthenticatorDescriptors(String acr)
+                throws AuthenticatorNotConfiguredException
+        {
+            _lookupCount.increment();
+            StandIns.pause(_latencyNanos);
+            NonEmptyList<AuthenticatorDescriptor> descriptors = _descriptors.get(acr);
+
+            if (descriptors == null)
+            {
+                throw new AuthenticatorNotConfiguredException(acr);
+            }
+
+            return descriptors;
+        }
+    }
+
+    private static final class Descriptor implements AuthenticatorDescriptor
+    {
+        private final String _acr;
+        private final String _description;
+
+        private Descriptor(String acr)
+        {
+            _acr = acr;
+            _description = "Authenticator " + acr;
+        }
+
+        @Override
+        public String getAcr()
+        {
+            return _acr;
+        }
+
+        @Override
+        public String getId()
+        {
+            return _acr;
+        }
+
+        @Override
+        public String getDescription()
+        {
+            return _description;
+        }
+
+        @Override
+        public String getType()
+        {
+            return "in-memory";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.service.SessionManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A session of a single user, kept in memory. Counts the operations made on it, since each of them is a round trip
+ * to the session store in a clustered deployment.
+ */
+public final class InMemorySessionManager
+{
+    private final Map<String, Attribute> _attributes = new HashMap<>();
+    private final SessionManager _sessionManager;
+    private long _operationCount;
+
+    public InMemorySessionManager()
+    {
+        _sessionManager = new Session();
+    }
+
+    public SessionManager getSessionManager()
+    {
+        return _sessionManager;
+    }
+
+    public long getOperationCount()
+    {
+        return _operationCount;
+    }
+
+    public void clear()
+    {
+        _attributes.clear();
+    }
+
+    private final class Session implements SessionManager
+    {
+        @Override
+        public Attribute get(String name)
+        {
+            _operationCount++;
+
+            return _attributes.get(name);
+        }
+
+        @Override
+        public void put(Attribute attribute)
+        {
+            _operationCount++;
+            _attributes.put(attribute.getName().getValue(), attribute);
+        }
+
+        @Override
+        public Attribute remove(String name)
+        {
+            _operationCount++;
+
+            return _attributes.remove(name);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.service.SessionManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sessions of many users logging in at once, kept in memory.
+ * <p>
+ * Like the session manager the server gives a plugin, the single {@link SessionManager} operates on the session of
+ * the request being handled. Here, that is the session of the user the calling thread is logging in, which starts
+ * afresh on {@link #newSession()}.
+ */
+public final class InMemorySessionStore
+{
+    private final ThreadLocal<Map<String, Attribute>> _currentSession = ThreadLocal.withInitial(HashMap::new);
+    private final LongAdder _operationCount = new LongAdder();
+    private final SessionManager _sessionManager;
+    private volatile long _latencyNanos;
+
+    public InMemorySessionStore()
+    {
+        _sessionManager = new CurrentSession();
+    }
+
+    public SessionManager getSessionManager()
+    {
+        return _sessionManager;
+    }
+
+    /**
+     * Starts a new session for the user the calling thread logs in next.
+     */
+    public void newSession()
+    {
+        _currentSession.get().clear();
+    }
+
+    /**
+     * Makes every operation take at least the given time, as a round trip to a clustered session store would.
+     */
+    public void setLatency(long latency, TimeUnit unit)
+    {
+        _latencyNanos = unit.toNanos(latency);
+    }
+
+    public long getOperationCount()
+    {
+        return _operationCount.sum();
+    }
+
+    private final class CurrentSession implements SessionManager
+    {
+        @Override
+        public Attribute get(String name)
+        {
+            return roundTrip().get(name);
+        }
+
+        @Override
+        public void put(Attribute attribute)
+        {
+            roundTrip().put(attribute.getName().getValue(), attribute);
+        }
+
+        @Override
+        public Attribute remove(String name)
+        {
+            return roundTrip().remove(name);
+        }
+
+        private Map<String, Attribute> roundTrip()
+        {
+            _operationCount.increment();
+            StandIns.pause(_latencyNanos);
+
+            return _currentSession.get();
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import io.curity.identityserver.plugin.OptInMFA.ChooseFactorPostRequestModel;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAChooseFactorHandler;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAManagedObject;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAuthenticationActionHandler;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+import se.curity.identityserver.sdk.attribute.ContextAttributes;
+import se.curity.identityserver.sdk.authentication.AuthenticatedSessions;
+import se.curity.identityserver.sdk.authenticationaction.AuthenticationActionResult;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives many users at once through the whole flow, against in-memory stores with injectable latency, and reports
+ * the latency of each step and the store calls made per login.
+ * <p>
+ * Each of the {@code --users} threads logs in one user at a time: the action prompts, the page is shown, the user
+ * chooses the last of their factors, the action asks to authenticate with it and, once authenticated, completes.
+ * Run with {@code --help} for the options.
+ */
+public final class LoadTest
+{
+    private static final String[] STEPS = {"apply-prompt", "index", "choose-factor", "apply-authenticate", "apply-complete"};
+
+    private final Map<String, String> _options;
+    private final InMemorySessionStore _sessions = new InMemorySessionStore();
+    private final InMemoryAccountManager _accounts = new InMemoryAccountManager();
+    private final InMemoryAuthenticatorDescriptorFactory _descriptorFactory;
+    private final OptInMFAAuthenticationAction _action;
+    private final OptInMFAuthenticationActionHandler _indexHandler;
+    private final OptInMFAChooseFactorHandler _chooseFactorHandler;
+
+    private final AuthenticationAttributes[] _users;
+    private final Request _indexRequest;
+    private final Request _chooseFactorRequest;
+    private final AuthenticatedSessions _noSessions = WebStandIns.noAuthenticatedSessions();
+    private final AuthenticatedSessions _chosenFactorSession;
+    private final LongAdder _failedLogins = new LongAdder();
+
+    private LoadTest(Map<String, String> options)
+    {
+        _options = options;
+
+        int factorCount = intOption("factors");
+        String[] acrs = new String[factorCount];
+
+        for (int i = 0; i < factorCount; i++)
+        {
+            acrs[i] = "acr-" + i;
+        }
+
+        _users = new AuthenticationAttributes[intOption("accounts")];
+
+        for (int i = 0; i < _users.length; i++)
+        {
+            String subject = "user-" + i;
+            _accounts.addUser(subject, acrs, factorCount);
+            _users[i] = AuthenticationAttributes.of(subject, ContextAttributes.empty());
+        }
+
+        _descriptorFactory = new InMemoryAuthenticatorDescriptorFactory(acrs);
+
+        _sessions.setLatency(intOption("session-latency-us"), TimeUnit.MICROSECONDS);
+        _accounts.setLatency(intOption("account-latency-us"), TimeUnit.MICROSECONDS);
+        _descriptorFactory.setLatency(intOption("descriptor-latency-us"), TimeUnit.MICROSECONDS);
+
+        BenchmarkConfiguration configurationBuilder = new BenchmarkConfiguration(_accounts.getAccountManager(),
+                _descriptorFactory.getFactory(), _sessions.getSessionManager());
+
+        for (String setting : options.getOrDefault("set", "").split(";"))
+        {
+            int separator = setting.indexOf('=');
+
+            if (separator > 0)
+            {
+                configurationBuilder.withParsed(setting.substring(0, separator), setting.substring(separator + 1));
+            }
+        }
+
+        OptInMFAAuthenticationActionConfig configuration = configurationBuilder.build();
+        OptInMFAManagedObject managedObject = new OptInMFAManagedObject(configuration);
+
+        _action = new OptInMFAAuthenticationAction(configuration, managedObject);
+        _indexHandler = new OptInMFAuthenticationActionHandler(_sessions.getSessionManager(), configuration, null,
+                managedObject);
+        _chooseFactorHandler = new OptInMFAChooseFactorHandler(_sessions.getSessionManager(), null, configuration,
+                managedObject);
+
+        String chosenAcr = acrs[factorCount - 1];
+        _indexRequest = WebStandIns.getRequest(Collections.emptyMap());
+        _chooseFactorRequest = WebStandIns.postRequest(Collections.emptyMap(),
+                Collections.singletonMap("secondFactor", chosenAcr));
+        _chosenFactorSession = WebStandIns.authenticatedSessions(Collections.singleton(chosenAcr));
+    }
+
+    public static void main(String[] arguments) throws Exception
+    {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("users", "1000");
+        options.put("logins", "200000");
+        options.put("warmup-logins", "20000");
+        options.put("accounts", "10000");
+        options.put("factors", "5");
+        options.put("session-latency-us", "200");
+        options.put("account-latency-us", "1000");
+        options.put("descriptor-latency-us", "0");
+        options.put("set", "");
+
+        for (int i = 0; i < arguments.length; i++)
+        {
+            String name = arguments[i].startsWith("--") ? arguments[i].substring(2) : arguments[i];
+
+            if (!options.containsKey(name) || i + 1 == arguments.length)
+            {
+                printUsage(options);
+                return;
+            }
+
+            options.put(name, arguments[++i]);
+        }
+
+        new LoadTest(options).run();
+    }
+
+    private static void printUsage(Map<String, String> defaults)
+    {
+        System.out.println("Options, with their defaults:");
+        defaults.forEach((name, value) -> System.out.printf("  --%s %s%n", name, value.isEmpty() ? "\"\"" : value));
+        System.out.println();
+        System.out.println("--users is the number of users logging in at once, each on its own thread.");
+        System.out.println("--set overrides settings of the action, e.g. \"isSecondFactorsCacheEnabled=true;isAccountLookupGuardEnabled=true\".");
+    }
+
+    private void run() throws Exception
+    {
+        int users = intOption("users");
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+
+        try
+        {
+            System.out.printf("Warming up with %d logins%n", intOption("warmup-logins"));
+            runLogins(executor, users, intOption("warmup-logins"));
+
+            long sessionOperations = _sessions.getOperationCount();
+            long accountLookups = _accounts.getLookupCount();
+            long descriptorLookups = _descriptorFactory.getLookupCount();
+            _failedLogins.reset();
+
+            int logins = intOption("logins");
+            System.out.printf("Running %d logins with %d users at once%n", logins, users);
+
+            long startTime = System.nanoTime();
+            List<long[]> latencies = runLogins(executor, users, logins);
+            double elapsedSeconds = (System.nanoTime() - startTime) / 1e9;
+
+            long completedLogins = logins - _failedLogins.sum();
+
+            System.out.println();
+            System.out.printf(Locale.ROOT, "Throughput: %.0f logins/s (%d completed, %d failed, in %.1f s)%n",
+                    completedLogins / elapsedSeconds, completedLogins, _failedLogins.sum(), elapsedSeconds);
+            System.out.printf(Locale.ROOT, "Per completed login: %.2f session operations, %.2f account lookups, %.2f descriptor lookups%n",
+                    perLogin(_sessions.getOperationCount() - sessionOperations, completedLogins),
+                    perLogin(_accounts.getLookupCount() - accountLookups, completedLogins),
+                    perLogin(_descriptorFactory.getLookupCount() - descriptorLookups, completedLogins));
+            System.out.println();
+            System.out.printf("%-20s %10s %10s %10s %10s %10s%n", "Step (us)", "count", "p50", "p99", "p999", "max");
+
+            for (int step = 0; step < STEPS.length; step++)
+            {
+                long[] stepLatencies = latencies.get(step);
+                Arrays.sort(stepLatencies);
+
+                System.out.printf("%-20s %10d %10d %10d %10d %10d%n", STEPS[step], stepLatencies.length,
+                        percentileMicros(stepLatencies, 0.5), percentileMicros(stepLatencies, 0.99),
+                        percentileMicros(stepLatencies, 0.999), percentileMicros(stepLatencies, 1));
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the latencies of each step, in nanoseconds.
+     */
+    private List<long[]> runLogins(ExecutorService executor, int users, int logins) throws Exception
+    {
+        AtomicInteger remainingLogins = new AtomicInteger(logins);
+        List<Future<Recorder>> workers = new ArrayList<>(users);
+
+        for (int i = 0; i < users; i++)
+        {
+            int firstUser = i;
+            workers.add(executor.submit(() -> {
+                Recorder recorder = new Recorder();
+                Response response = WebStandIns.response();
+                int user = firstUser;
+
+                while (remainingLogins.getAndDecrement() > 0)
+                {
+                    logIn(_users[user], response, recorder);
+                    user = (user + users) % _users.length;
+                }
+
+                return recorder;
+            }));
+        }
+
+        List<Recorder> recorders = new ArrayList<>(users);
+
+        for (Future<Recorder> worker : workers)
+        {
+            recorders.add(worker.get());
+        }
+
+        List<long[]> latencies = new ArrayList<>(STEPS.length);
+
+        for (int step = 0; step < STEPS.length; step++)
+        {
+            int count = 0;
+
+            for (Recorder recorder : recorders)
+            {
+                count += recorder._counts[step];
+            }
+
+            long[] stepLatencies = new long[count];
+            int offset = 0;
+
+            for (Recorder recorder : recorders)
+            {
+                System.arraycopy(recorder._latencies[step], 0, stepLatencies, offset, recorder._counts[step]);
+                offset += recorder._counts[step];
+            }
+
+            latencies.add(stepLatencies);
+        }
+
+        return latencies;
+    }
+
+    private void logIn(AuthenticationAttributes user, Response response, Recorder recorder)
+    {
+        _sessions.newSession();
+
+        long time = System.nanoTime();
+        AuthenticationActionResult prompt = _action.apply(user, _noSessions, "load-test", null);
+        time = recorder.record(0, time);
+
+        if (!(prompt instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult))
+        {
+            _failedLogins.increment();
+            return;
+        }
+
+        _indexHandler.get(_indexRequest, response);
+        time = recorder.record(1, time);
+
+        _chooseFactorHandler.post(new ChooseFactorPostRequestModel(_chooseFactorRequest), response);
+        time = recorder.record(2, time);
+
+        _action.apply(user, _noSessions, "load-test", null);
+        time = recorder.record(3, time);
+
+        AuthenticationActionResult completion = _action.apply(user, _chosenFactorSession, "load-test", null);
+        recorder.record(4, time);
+
+        if (!(completion instanceof AuthenticationActionResult.SuccessAuthenticationActionResult))
+        {
+            _failedLogins.increment();
+        }
+    }
+
+    private int intOption(String name)
+    {
+        return Integer.parseInt(_options.get(name));
+    }
+
+    private static double perLogin(long count, long logins)
+    {
+        return logins == 0 ? 0 : (double) count / logins;
+    }
+
+    private static long percentileMicros(long[] sortedNanos, double percentile)
+    {
+        if (sortedNanos.length == 0)
+        {
+            return 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+
+        return TimeUnit.NANOSECONDS.toMicros(sortedNanos[Math.max(0, index)]);
+    }
+
+    /**
+     * The latencies of the steps taken by one thread, so that recording needs no synchronization.
+     */
+    private static final class Recorder
+    {
+        private final long[][] _latencies = new long[STEPS.length][1024];
+        private final int[] _counts = new int[STEPS.length];
+
+        /**
+         * @return the end time of the step, which is the start time of the next one.
+         */
+        long record(int step, long startTime)
+        {
+            long endTime = System.nanoTime();
+
+            if (_counts[step] == _latencies[step].length)
+            {
+                _latencies[step] = Arrays.copyOf(_latencies[step], _counts[step] * 2);
+            }
+
+            _latencies[step][_counts[step]++] = endTime - startTime;
+
+            return endTime;
+        }
+    }
+}
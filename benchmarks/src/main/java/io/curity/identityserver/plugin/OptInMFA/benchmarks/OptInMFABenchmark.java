@@ -0,0 +1,241 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import io.curity.identityserver.plugin.OptInMFA.ChooseFactorPostRequestModel;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAChooseFactorHandler;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAManagedObject;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAuthenticationActionHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
+import se.curity.identityserver.sdk.attribute.ContextAttributes;
+import se.curity.identityserver.sdk.authentication.AuthenticatedSessions;
+import se.curity.identityserver.sdk.authenticationaction.AuthenticationActionResult;
+import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionResult;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.REMEMBER_CHOICE_COOKIE_NAME;
+
+/**
+ * Measures the phases of a login through the action, for users with different numbers of registered factors.
+ * <p>
+ * Every benchmark starts from an empty session and drives the action and handlers through the same calls the server
+ * would make, so the later phases include the cost of the earlier ones. Run with {@code -prof gc} to see the
+ * allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OptInMFABenchmark
+{
+    private static final int USER_COUNT = 1024;
+    private static final String TRANSACTION_ID = "benchmark-transaction";
+
+    @Param({"1", "5", "20", "50"})
+    public int factorCount;
+
+    @Param({"false", "true"})
+    public boolean secondFactorsCache;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private final InMemorySessionManager _session = new InMemorySessionManager();
+    private final Response _response = WebStandIns.response();
+    private final AuthenticatedSessions _noSessions = WebStandIns.noAuthenticatedSessions();
+
+    private AuthenticationAttributes[] _users;
+    private int _nextUser;
+
+    private OptInMFAAuthenticationAction _action;
+    private OptInMFAuthenticationActionHandler _indexHandler;
+    private OptInMFAChooseFactorHandler _chooseFactorHandler;
+
+    private AuthenticatedSessions _chosenFactorSession;
+    private Request _indexRequest;
+    private Request[] _rememberedChoiceIndexRequests;
+    private Request _chooseFactorRequest;
+    private Request _forgedChooseFactorRequest;
+
+    @Setup
+    public void setUp()
+    {
+        String[] acrs = new String[factorCount];
+
+        for (int i = 0; i < factorCount; i++)
+        {
+            acrs[i] = "acr-" + i;
+        }
+
+        InMemoryAccountManager accounts = new InMemoryAccountManager();
+        _users = new AuthenticationAttributes[USER_COUNT];
+
+        for (int i = 0; i < USER_COUNT; i++)
+        {
+            String subject = "user-" + i;
+            accounts.addUser(subject, acrs, factorCount);
+            _users[i] = AuthenticationAttributes.of(subject, ContextAttributes.empty());
+        }
+
+        InMemoryAuthenticatorDescriptorFactory descriptorFactory = new InMemoryAuthenticatorDescriptorFactory(acrs);
+
+        OptInMFAAuthenticationActionConfig configuration = new BenchmarkConfiguration(accounts.getAccountManager(),
+                descriptorFactory.getFactory(), _session.getSessionManager())
+                .with("isSecondFactorsCacheEnabled", secondFactorsCache)
+                .with("isMetricsEnabled", metrics)
+                .build();
+        OptInMFAManagedObject managedObject = new OptInMFAManagedObject(configuration);
+
+        _action = new OptInMFAAuthenticationAction(configuration, managedObject);
+        _indexHandler = new OptInMFAuthenticationActionHandler(_session.getSessionManager(), configuration, null,
+                managedObject);
+        _chooseFactorHandler = new OptInMFAChooseFactorHandler(_session.getSessionManager(), null, configuration,
+                managedObject);
+
+        String chosenAcr = acrs[factorCount - 1];
+        _chosenFactorSession = WebStandIns.authenticatedSessions(Collections.singleton(chosenAcr));
+        _indexRequest = WebStandIns.getRequest(Collections.emptyMap());
+        _rememberedChoiceIndexRequests = new Request[USER_COUNT];
+
+        // The cookie is bound to the user it was issued to, so each user needs their own
+        for (int i = 0; i < USER_COUNT; i++)
+        {
+            String cookieValue = managedObject.getRememberChoiceCookieCodec().encode(_users[i].getSubject(), chosenAcr,
+                    System.currentTimeMillis() / 1000 + TimeUnit.DAYS.toSeconds(365));
+            _rememberedChoiceIndexRequests[i] = WebStandIns.getRequest(
+                    Collections.singletonMap(REMEMBER_CHOICE_COOKIE_NAME, cookieValue));
+        }
+
+        _chooseFactorRequest = WebStandIns.postRequest(Collections.emptyMap(),
+                Collections.singletonMap("secondFactor", chosenAcr));
+        _forgedChooseFactorRequest = WebStandIns.postRequest(Collections.emptyMap(),
+                Collections.singletonMap("secondFactor", "not-offered"));
+    }
+
+    /**
+     * The action runs for a user who has not chosen a factor yet, and asks to prompt the user.
+     */
+    @Benchmark
+    public AuthenticationActionResult firstVisit()
+    {
+        _session.clear();
+
+        return _action.apply(nextUser(), _noSessions, TRANSACTION_ID, null);
+    }
+
+    /**
+     * The user is shown the page listing their factors.
+     */
+    @Benchmark
+    public Optional<ActionCompletionResult> promptRender()
+    {
+        _session.clear();
+        _action.apply(nextUser(), _noSessions, TRANSACTION_ID, null);
+
+        return _indexHandler.get(_indexRequest, _response);
+    }
+
+    /**
+     * The user has a cookie remembering their choice, so the page is skipped.
+     */
+    @Benchmark
+    public Optional<ActionCompletionResult> rememberedChoice()
+    {
+        int user = _nextUser;
+
+        _session.clear();
+        _action.apply(nextUser(), _noSessions, TRANSACTION_ID, null);
+
+        return _indexHandler.get(_rememberedChoiceIndexRequests[user], _response);
+    }
+
+    /**
+     * The user already has an SSO session of one of their factors, so the action succeeds straight away.
+     */
+    @Benchmark
+    public AuthenticationActionResult alreadyAuthenticated()
+    {
+        _session.clear();
+
+        return _action.apply(nextUser(), _chosenFactorSession, TRANSACTION_ID, null);
+    }
+
+    /**
+     * The whole flow: prompt, page, choice, authentication with the chosen factor and completion of the action.
+     */
+    @Benchmark
+    public AuthenticationActionResult chosenFactorCompletion()
+    {
+        AuthenticationAttributes user = nextUser();
+
+        _session.clear();
+        _action.apply(user, _noSessions, TRANSACTION_ID, null);
+        _indexHandler.get(_indexRequest, _response);
+        _chooseFactorHandler.post(new ChooseFactorPostRequestModel(_chooseFactorRequest), _response);
+        _action.apply(user, _noSessions, TRANSACTION_ID, null);
+
+        return _action.apply(user, _chosenFactorSession, TRANSACTION_ID, null);
+    }
+
+    /**
+     * A bot posts a factor the user was not offered, which is rejected before anything is written to the session.
+     * With {@code -prof gc}, the allocation of this benchmark minus that of {@link #firstVisit()} is the cost of the
+     * rejection.
+     */
+    @Benchmark
+    public Object forgedChoice()
+    {
+        _session.clear();
+        _action.apply(nextUser(), _noSessions, TRANSACTION_ID, null);
+
+        try
+        {
+            return _chooseFactorHandler.post(new ChooseFactorPostRequestModel(_forgedChooseFactorRequest), _response);
+        }
+        catch (RuntimeException e)
+        {
+            return e;
+        }
+    }
+
+    private AuthenticationAttributes nextUser()
+    {
+        AuthenticationAttributes user = _users[_nextUser];
+        _nextUser = (_nextUser + 1) % USER_COUNT;
+
+        return user;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Creates stand-ins for SDK interfaces, implementing only the methods which the plugin actually calls. Any other
+ * call fails loudly, so that a benchmark never silently measures a code path which the stand-in does not support.
+ * <p>
+ * A call through one of these goes through reflection, boxing its arguments, so they are only used for interfaces
+ * which declare many methods of which the plugin calls few, and for the configuration, whose settings are read when
+ * the plugin is set up. The session manager, descriptor factory and descriptors, which the plugin calls on every
+ * request, are plain classes.
+ */
+final class StandIns
+{
+    private StandIns()
+    {
+    }
+
+    static <T> T of(Class<T> type, InvocationHandler handler)
+    {
+        Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (self, method, arguments) -> {
+            if (method.getDeclaringClass() == Object.class)
+            {
+                return invokeObjectMethod(type, self, method, arguments);
+            }
+
+            return handler.invoke(self, method, arguments);
+        });
+
+        return type.cast(proxy);
+    }
+
+    /**
+     * Holds up the calling thread for the given time, as a call to a remote store would.
+     */
+    static void pause(long nanos)
+    {
+        if (nanos > 0)
+        {
+            LockSupport.parkNanos(nanos);
+        }
+    }
+
+    static UnsupportedOperationException unsupported(Method method)
+    {
+        return new UnsupportedOperationException(String.format("%s.%s is not available in the stand-in",
+                method.getDeclaringClass().getSimpleName(), method.getName()));
+    }
+
+    private static Object invokeObjectMethod(Class<?> type, Object self, Method method, Object[] arguments)
+    {
+        switch (method.getName())
+        {
+            case "equals":
+                return self == arguments[0];
+            case "hashCode":
+                return System.identityHashCode(self);
+            case "toString":
+                return "StandIn(" + type.getSimpleName() + ")";
+            default:
+                throw unsupported(method);
+        }
+    }
+}
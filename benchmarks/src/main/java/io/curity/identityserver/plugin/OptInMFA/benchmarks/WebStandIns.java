@@ -0,0 +1,141 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA.benchmarks;
+
+import se.curity.identityserver.sdk.authentication.AuthenticatedSessions;
+import se.curity.identityserver.sdk.web.Request;
+import se.curity.identityserver.sdk.web.Response;
+import se.curity.identityserver.sdk.web.cookie.Cookie;
+import se.curity.identityserver.sdk.web.cookie.RequestCookies;
+import se.curity.identityserver.sdk.web.cookie.ResponseCookies;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Requests, responses and authenticated sessions as seen by the action and its handlers.
+ */
+public final class WebStandIns
+{
+    private WebStandIns()
+    {
+    }
+
+    public static AuthenticatedSessions authenticatedSessions(Set<String> authenticatedAcrs)
+    {
+        return StandIns.of(AuthenticatedSessions.class, (self, method, arguments) -> {
+            if ("contains".equals(method.getName()))
+            {
+                return authenticatedAcrs.contains((String) arguments[0]);
+            }
+
+            throw StandIns.unsupported(method);
+        });
+    }
+
+    public static AuthenticatedSessions noAuthenticatedSessions()
+    {
+        return authenticatedSessions(Collections.emptySet());
+    }
+
+    public static Request getRequest(Map<String, String> cookies)
+    {
+        return request(false, cookies, Collections.emptyMap());
+    }
+
+    public static Request postRequest(Map<String, String> cookies, Map<String, String> formParameters)
+    {
+        return request(true, cookies, formParameters);
+    }
+
+    /**
+     * @return a response which accepts, and discards, view data and cookies.
+     */
+    public static Response response()
+    {
+        ResponseCookies cookies = StandIns.of(ResponseCookies.class, (self, method, arguments) -> {
+            if ("add".equals(method.getName()))
+            {
+                return null;
+            }
+
+            throw StandIns.unsupported(method);
+        });
+
+        return StandIns.of(Response.class, (self, method, arguments) -> {
+            switch (method.getName())
+            {
+                case "putViewData":
+                case "setResponseModel":
+                    return null;
+                case "cookies":
+                    return cookies;
+                default:
+                    throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static Request request(boolean isPost, Map<String, String> cookies, Map<String, String> formParameters)
+    {
+        RequestCookies requestCookies = StandIns.of(RequestCookies.class, (self, method, arguments) -> {
+            if ("getFirst".equals(method.getName()))
+            {
+                String name = (String) arguments[0];
+                String value = cookies.get(name);
+
+                return value == null ? null : cookie(name, value);
+            }
+
+            throw StandIns.unsupported(method);
+        });
+
+        return StandIns.of(Request.class, (self, method, arguments) -> {
+            switch (method.getName())
+            {
+                case "isPostRequest":
+                    return isPost;
+                case "isGetRequest":
+                    return !isPost;
+                case "getCookies":
+                    return requestCookies;
+                case "getClientIpAddress":
+                    return "127.0.0.1";
+                case "getFormParameterValueOrError":
+                case "getParameterValueOrError":
+                    return formParameters.get((String) arguments[0]);
+                default:
+                    throw StandIns.unsupported(method);
+            }
+        });
+    }
+
+    private static Cookie cookie(String name, String value)
+    {
+        return StandIns.of(Cookie.class, (self, method, arguments) -> {
+            switch (method.getName())
+            {
+                case "getName":
+                    return name;
+                case "getValue":
+                    return value;
+                default:
+                    throw StandIns.unsupported(method);
+            }
+        });
+    }
+}
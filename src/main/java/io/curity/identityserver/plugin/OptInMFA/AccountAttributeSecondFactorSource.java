@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.AccountAttributes;
+import se.curity.identityserver.sdk.service.AccountManager;
+
+import java.util.Map;
+
+/**
+ * Reads the second factors of a user from the {@value #SECOND_FACTORS_ATTRIBUTE} attribute of their account.
+ */
+public final class AccountAttributeSecondFactorSource implements SecondFactorSource
+{
+    static final String SECOND_FACTORS_ATTRIBUTE = "secondFactors";
+
+    private final AccountManager _accountManager;
+
+    public AccountAttributeSecondFactorSource(AccountManager accountManager)
+    {
+        _accountManager = accountManager;
+    }
+
+    @Override
+    @Nullable
+    public Map<String, String> getSecondFactors(String subject)
+    {
+        @Nullable AccountAttributes user = _accountManager.getByUserName(subject);
+
+        return user == null ? null : user.getOptionalValue(SECOND_FACTORS_ATTRIBUTE, Map.class);
+    }
+}
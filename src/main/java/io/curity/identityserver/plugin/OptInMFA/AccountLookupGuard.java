@@ -0,0 +1,312 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Guards the lookup of a user's second factors, so that a slow or failing account store does not take every login
+ * down with it.
+ * <p>
+ * The lookup runs on the request thread, since the account manager is part of the request context of the server. No
+ * more than the configured number of lookups run at once; a lookup beyond that is rejected straight away. A lookup
+ * which fails, or takes longer than the timeout, counts as a failure, and after a number of consecutive failures the
+ * circuit opens and lookups are not attempted at all for a while, giving the account store room to recover. When that
+ * while is over, a single trial lookup is let through: the circuit closes if it succeeds, and opens again if it fails.
+ * <p>
+ * When a lookup is not answered, the configured {@link OptInMFAAuthenticationActionConfig.AccountLookupFallback}
+ * applies: either the login fails, or the factors last looked up for the user are used.
+ */
+public final class AccountLookupGuard
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int LAST_KNOWN_MAX_ENTRIES = 100_000;
+
+    private final Semaphore _pendingPermits;
+    private final int _maxPending;
+    private final long _timeoutNanos;
+    private final int _failureThreshold;
+    private final long _openNanos;
+    private final LongSupplier _nanoClock;
+    @Nullable
+    private final BoundedTtlCache<String, Map<String, String>> _lastKnownSecondFactors;
+
+    private final AtomicInteger _consecutiveFailures = new AtomicInteger();
+    private final AtomicLong _openUntilNanos = new AtomicLong();
+    private final AtomicBoolean _trialInProgress = new AtomicBoolean();
+
+    private final LongAdder _timeouts = new LongAdder();
+    private final LongAdder _failures = new LongAdder();
+    private final LongAdder _rejections = new LongAdder();
+    private final LongAdder _shortCircuits = new LongAdder();
+    private final LongAdder _fallbacks = new LongAdder();
+
+    private AccountLookupGuard(OptInMFAAuthenticationActionConfig configuration, LongSupplier nanoClock)
+    {
+        _maxPending = configuration.getAccountLookupMaxPending();
+        _pendingPermits = new Semaphore(_maxPending);
+        _timeoutNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getAccountLookupTimeoutMillis());
+        _failureThreshold = configuration.getAccountLookupCircuitBreakerFailureThreshold();
+        _openNanos = TimeUnit.SECONDS.toNanos(configuration.getAccountLookupCircuitBreakerOpenSeconds());
+        _nanoClock = nanoClock;
+        _lastKnownSecondFactors = configuration.getAccountLookupFallback() ==
+                OptInMFAAuthenticationActionConfig.AccountLookupFallback.LAST_KNOWN_FACTORS
+                ? new BoundedTtlCache<>(LAST_KNOWN_MAX_ENTRIES, configuration.getAccountLookupLastKnownMaxAgeSeconds(),
+                TimeUnit.SECONDS)
+                : null;
+    }
+
+    /**
+     * @return a guard, or null if lookups should not be guarded.
+     */
+    @Nullable
+    public static AccountLookupGuard create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        return create(configuration, System::nanoTime);
+    }
+
+    @Nullable
+    static AccountLookupGuard create(OptInMFAAuthenticationActionConfig configuration, LongSupplier nanoClock)
+    {
+        if (!configuration.isAccountLookupGuardEnabled())
+        {
+            return null;
+        }
+
+        return new AccountLookupGuard(configuration, nanoClock);
+    }
+
+    /**
+     * @param subject the user whose factors are looked up.
+     * @param lookup  looks up the factors, as a map of user-defined names to ACRs, or null if the user has none.
+     * @return the factors of the user, or the last known factors if the lookup was not answered and that is the
+     * configured fallback.
+     * @throws SecondFactorsUnavailableException if the lookup was not answered and there is nothing to fall back on.
+     */
+    public Result lookUp(String subject, Supplier<Map<String, String>> lookup)
+    {
+        boolean trial = false;
+
+        if (isOpen())
+        {
+            _shortCircuits.increment();
+            return fallBack(subject, SecondFactorsUnavailableException.ACCOUNT_STORE_FAILING);
+        }
+
+        if (_openUntilNanos.get() != 0)
+        {
+            // The circuit has been open for long enough, and only one lookup at a time may find out if it can close
+            if (!_trialInProgress.compareAndSet(false, true))
+            {
+                _shortCircuits.increment();
+                return fallBack(subject, SecondFactorsUnavailableException.ACCOUNT_STORE_FAILING);
+            }
+
+            trial = true;
+        }
+
+        if (!_pendingPermits.tryAcquire())
+        {
+            endTrial(trial);
+            _rejections.increment();
+            return fallBack(subject, SecondFactorsUnavailableException.TOO_MANY_PENDING);
+        }
+
+        long startTime = _nanoClock.getAsLong();
+        @Nullable Map<String, String> secondFactors;
+
+        try
+        {
+            secondFactors = lookup.get();
+        }
+        catch (RuntimeException e)
+        {
+            _logger.warn("Failed to look up the second factors of a user", e);
+            _failures.increment();
+            recordFailure();
+
+            return fallBack(subject, SecondFactorsUnavailableException.FAILED);
+        }
+        finally
+        {
+            _pendingPermits.release();
+            endTrial(trial);
+        }
+
+        if (_nanoClock.getAsLong() - startTime > _timeoutNanos)
+        {
+            // The answer is used, but a store this slow should not be asked again until it has recovered
+            _timeouts.increment();
+            recordFailure();
+        }
+        else
+        {
+            _consecutiveFailures.set(0);
+            _openUntilNanos.set(0);
+        }
+
+        if (_lastKnownSecondFactors != null)
+        {
+            if (secondFactors == null || secondFactors.isEmpty())
+            {
+                _lastKnownSecondFactors.invalidate(subject);
+            }
+            else
+            {
+                _lastKnownSecondFactors.put(subject, Collections.unmodifiableMap(new LinkedHashMap<>(secondFactors)));
+            }
+        }
+
+        return new Result(secondFactors, false);
+    }
+
+    private boolean isOpen()
+    {
+        long openUntil = _openUntilNanos.get();
+
+        return openUntil != 0 && _nanoClock.getAsLong() - openUntil < 0;
+    }
+
+    private void endTrial(boolean trial)
+    {
+        if (trial)
+        {
+            _trialInProgress.set(false);
+        }
+    }
+
+    private void recordFailure()
+    {
+        // Failures are not reset when the circuit opens, so that a failing trial opens it again
+        if (_failureThreshold > 0 && _consecutiveFailures.incrementAndGet() >= _failureThreshold)
+        {
+            long now = _nanoClock.getAsLong();
+            long previousOpenUntil = _openUntilNanos.getAndSet(now + _openNanos);
+
+            if (previousOpenUntil == 0 || now - previousOpenUntil >= 0)
+            {
+                _logger.warn("Account lookups are failing, not attempting them for {} seconds",
+                        TimeUnit.NANOSECONDS.toSeconds(_openNanos));
+            }
+        }
+    }
+
+    private Result fallBack(String subject, SecondFactorsUnavailableException unavailable)
+    {
+        @Nullable Map<String, String> lastKnownSecondFactors = _lastKnownSecondFactors == null
+                ? null
+                : _lastKnownSecondFactors.get(subject);
+
+        if (lastKnownSecondFactors == null)
+        {
+            throw unavailable;
+        }
+
+        _fallbacks.increment();
+
+        return new Result(lastKnownSecondFactors, true);
+    }
+
+    public int getPendingCount()
+    {
+        return _maxPending - _pendingPermits.availablePermits();
+    }
+
+    /**
+     * @return the number of lookups which were answered, but took longer than the timeout.
+     */
+    public long getTimeoutCount()
+    {
+        return _timeouts.sum();
+    }
+
+    public long getFailureCount()
+    {
+        return _failures.sum();
+    }
+
+    public long getRejectionCount()
+    {
+        return _rejections.sum();
+    }
+
+    public long getShortCircuitCount()
+    {
+        return _shortCircuits.sum();
+    }
+
+    public long getFallbackCount()
+    {
+        return _fallbacks.sum();
+    }
+
+    public void invalidateAll()
+    {
+        if (_lastKnownSecondFactors != null)
+        {
+            _lastKnownSecondFactors.invalidateAll();
+        }
+    }
+
+    /**
+     * The factors of a user, and whether they are the last known factors rather than the answer of a lookup.
+     */
+    public static final class Result
+    {
+        @Nullable
+        private final Map<String, String> _secondFactors;
+        private final boolean _lastKnown;
+
+        private Result(@Nullable Map<String, String> secondFactors, boolean lastKnown)
+        {
+            _secondFactors = secondFactors;
+            _lastKnown = lastKnown;
+        }
+
+        /**
+         * @return the factors of the user, as a map of user-defined names to ACRs, or null if the user has none.
+         */
+        @Nullable
+        public Map<String, String> getSecondFactors()
+        {
+            return _secondFactors;
+        }
+
+        /**
+         * @return true if the factors are the ones last looked up, used since the lookup was not answered.
+         */
+        public boolean isLastKnown()
+        {
+            return _lastKnown;
+        }
+    }
+}
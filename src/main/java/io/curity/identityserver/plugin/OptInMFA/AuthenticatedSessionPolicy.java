@@ -0,0 +1,117 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.authentication.AuthenticatedSessions;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether the factors a user has already authenticated with in the SSO session are enough to skip the
+ * prompt, according to the configured {@link OptInMFAAuthenticationActionConfig.StepUpPolicy}.
+ * <p>
+ * The ranking of factors is prepared once per configuration, so that a login only asks the authenticated sessions
+ * about the user's factors, and about the factors ranked stronger than the weakest of them. The ranking may only
+ * contain configured second factors, and a session of the authenticator the action runs after never counts as one of
+ * the ranked factors, so that a first factor cannot stand in for a second one.
+ */
+public final class AuthenticatedSessionPolicy
+{
+    private final String[] _rankedAcrs;
+    private final Map<String, Integer> _ranks;
+
+    private AuthenticatedSessionPolicy(List<String> rankedAcrs)
+    {
+        _rankedAcrs = rankedAcrs.toArray(new String[0]);
+        _ranks = new HashMap<>();
+
+        for (int rank = _rankedAcrs.length - 1; rank >= 0; rank--)
+        {
+            _ranks.put(_rankedAcrs[rank], rank);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the ranking of factors contains an ACR which is not a configured second
+     *                                  factor.
+     */
+    public static AuthenticatedSessionPolicy create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        if (configuration.getStepUpPolicy() != OptInMFAAuthenticationActionConfig.StepUpPolicy.MINIMUM_STRENGTH)
+        {
+            return new AuthenticatedSessionPolicy(Collections.emptyList());
+        }
+
+        List<String> rankedAcrs = configuration.getFactorStrengthRanking();
+        List<String> secondFactorAcrs = configuration.getSecondFactorAcrs();
+
+        for (String acr : rankedAcrs)
+        {
+            if (!secondFactorAcrs.contains(acr))
+            {
+                throw new IllegalArgumentException("The factor strength ranking contains " + acr +
+                        ", which is not one of the configured second factor ACRs");
+            }
+        }
+
+        return new AuthenticatedSessionPolicy(rankedAcrs);
+    }
+
+    /**
+     * @param registeredAcrs the ACRs of the factors registered by the user.
+     * @param firstFactorAcr the ACR of the authenticator the action runs after, if known.
+     * @return the ACR of a factor the user has authenticated with which lets them skip the prompt, or null if there
+     * is none.
+     */
+    @Nullable
+    public String findSatisfyingAcr(Collection<String> registeredAcrs, @Nullable String firstFactorAcr,
+                                    AuthenticatedSessions authenticatedSessions)
+    {
+        int weakestRank = -1;
+
+        for (String acr : registeredAcrs)
+        {
+            if (authenticatedSessions.contains(acr))
+            {
+                return acr;
+            }
+
+            @Nullable Integer rank = _ranks.get(acr);
+
+            if (rank != null && rank > weakestRank)
+            {
+                weakestRank = rank;
+            }
+        }
+
+        for (int rank = 0; rank < weakestRank; rank++)
+        {
+            String acr = _rankedAcrs[rank];
+
+            if (!acr.equals(firstFactorAcr) && !registeredAcrs.contains(acr) && authenticatedSessions.contains(acr))
+            {
+                return acr;
+            }
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves all second factors of a user in one pass, for the page on which the user chooses among them.
+ * <p>
+ * Each ACR is resolved once, however many factors refer to it, on the request thread, since the factory is part of
+ * the request context of the server. The resulting models are ordered by the name of the factor, and then by ACR, so
+ * that the same factors always give the same page.
+ * <p>
+ * Since many users have the same factors, resolutions in which every factor was resolved are cached, keyed by the
+ * ordered factors. A user with the same factors as an earlier one is then shown the page without any lookups. Partial
+ * resolutions are not cached, so that an authenticator which is added to the system later is picked up.
+ */
+public final class AuthenticatorBatchResolver
+{
+    private static final Comparator<Map.Entry<String, String>> FACTOR_ORDER = Map.Entry.<String, String>comparingByKey()
+            .thenComparing(Map.Entry.comparingByValue());
+
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
+    @Nullable
+    private final BoundedTtlCache<String, Resolution> _resolutions;
+
+    /**
+     * @param cacheMaxEntries the number of distinct sets of factors whose resolution is cached, or 0 to not cache
+     *                        resolutions.
+     * @param cacheTtlSeconds for how long a resolution is cached, which is no longer than the models it holds are.
+     */
+    public AuthenticatorBatchResolver(AuthenticatorModelRegistry authenticatorModelRegistry, int cacheMaxEntries,
+                                      int cacheTtlSeconds)
+    {
+        _authenticatorModelRegistry = authenticatorModelRegistry;
+        _resolutions = cacheMaxEntries > 0
+                ? new BoundedTtlCache<>(cacheMaxEntries, cacheTtlSeconds, TimeUnit.SECONDS)
+                : null;
+    }
+
+    /**
+     * @param secondFactors the factors of the user, as a map of user-defined names to ACRs.
+     */
+    public Resolution resolve(Map<String, String> secondFactors)
+    {
+        List<Map.Entry<String, String>> factors = new ArrayList<>(secondFactors.entrySet());
+        factors.sort(FACTOR_ORDER);
+
+        if (_resolutions == null)
+        {
+            return resolve(factors);
+        }
+
+        String key = toKey(factors);
+        @Nullable Resolution resolution = _resolutions.get(key);
+
+        if (resolution == null)
+        {
+            resolution = resolve(factors);
+
+            if (resolution.getUnresolvedAcrs().isEmpty())
+            {
+                _resolutions.put(key, resolution);
+            }
+        }
+
+        return resolution;
+    }
+
+    public long getCacheHitCount()
+    {
+        return _resolutions == null ? 0 : _resolutions.getHitCount();
+    }
+
+    public long getCacheMissCount()
+    {
+        return _resolutions == null ? 0 : _resolutions.getMissCount();
+    }
+
+    public int getCacheSize()
+    {
+        return _resolutions == null ? 0 : _resolutions.size();
+    }
+
+    public void invalidateAll()
+    {
+        if (_resolutions != null)
+        {
+            _resolutions.invalidateAll();
+        }
+    }
+
+    private Resolution resolve(List<Map.Entry<String, String>> factors)
+    {
+        Set<String> acrs = new LinkedHashSet<>(factors.size() * 2);
+        List<AuthenticatorModel> models = new ArrayList<>(factors.size());
+        Set<String> unresolvedAcrs = new LinkedHashSet<>();
+
+        for (Map.Entry<String, String> factor : factors)
+        {
+            String acr = factor.getValue();
+
+            if (!acrs.add(acr))
+            {
+                // The choice is posted as an ACR, so only one factor per ACR can be shown
+                continue;
+            }
+
+            @Nullable AuthenticatorModel model = _authenticatorModelRegistry.getModel(acr, factor.getKey());
+
+            if (model != null)
+            {
+                models.add(model);
+            }
+            else
+            {
+                unresolvedAcrs.add(acr);
+            }
+        }
+
+        return new Resolution(models, unresolvedAcrs);
+    }
+
+    private static String toKey(List<Map.Entry<String, String>> factors)
+    {
+        StringBuilder key = new StringBuilder(factors.size() * 32);
+
+        for (Map.Entry<String, String> factor : factors)
+        {
+            // NUL cannot occur in names or ACRs, so distinct sets of factors give distinct keys
+            key.append(factor.getKey()).append('\0').append(factor.getValue()).append('\0');
+        }
+
+        return key.toString();
+    }
+
+    public static final class Resolution
+    {
+        private final List<AuthenticatorModel> _models;
+        private final Map<String, AuthenticatorModel> _modelsByAcr;
+        private final Set<String> _unresolvedAcrs;
+
+        private Resolution(List<AuthenticatorModel> models, Set<String> unresolvedAcrs)
+        {
+            Map<String, AuthenticatorModel> modelsByAcr = new LinkedHashMap<>(models.size() * 2);
+            models.forEach(model -> modelsByAcr.put(model.getAcr(), model));
+
+            _models = Collections.unmodifiableList(models);
+            _modelsByAcr = Collections.unmodifiableMap(modelsByAcr);
+            _unresolvedAcrs = Collections.unmodifiableSet(unresolvedAcrs);
+        }
+
+        /**
+         * @return the models of the configured authenticators, in the order in which they are shown.
+         */
+        public List<AuthenticatorModel> getModels()
+        {
+            return _models;
+        }
+
+        /**
+         * @return the same models as {@link #getModels()}, in the same order, keyed by ACR as the template expects.
+         */
+        public Map<String, AuthenticatorModel> getModelsByAcr()
+        {
+            return _modelsByAcr;
+        }
+
+        /**
+         * @return the ACRs of the user's factors which are not configured in the system.
+         */
+        public Set<String> getUnresolvedAcrs()
+        {
+            return _unresolvedAcrs;
+        }
+    }
+}
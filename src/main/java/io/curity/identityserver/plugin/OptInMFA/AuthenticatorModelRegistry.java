@@ -0,0 +1,129 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException;
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor;
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves authenticator descriptors and the {@link AuthenticatorModel}s shown to the user once, and remembers the
+ * result for a limited time, so that an authenticator which is renamed or removed stops being offered without a
+ * configuration reload of this action.
+ * <p>
+ * ACRs which are not configured in the system are remembered for a time of their own, usually shorter, so that an
+ * authenticator added later on is picked up soon.
+ */
+public final class AuthenticatorModelRegistry
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int MAX_ENTRIES = 10000;
+
+    private final AuthenticatorDescriptorFactory _authenticatorDescriptorFactory;
+    private final BoundedTtlCache<String, AuthenticatorDescriptor> _descriptors;
+    private final BoundedTtlCache<String, Boolean> _unconfiguredAcrs;
+    private final BoundedTtlCache<String, AuthenticatorModel> _models;
+
+    public AuthenticatorModelRegistry(AuthenticatorDescriptorFactory authenticatorDescriptorFactory,
+                                      int ttlSeconds, int unconfiguredAcrRetrySeconds)
+    {
+        _authenticatorDescriptorFactory = authenticatorDescriptorFactory;
+        _descriptors = new BoundedTtlCache<>(MAX_ENTRIES, ttlSeconds, TimeUnit.SECONDS);
+        _unconfiguredAcrs = new BoundedTtlCache<>(MAX_ENTRIES, unconfiguredAcrRetrySeconds, TimeUnit.SECONDS);
+        _models = new BoundedTtlCache<>(MAX_ENTRIES, ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true if the authenticator with the given ACR was recently found not to be configured.
+     */
+    public boolean isKnownToBeUnconfigured(String acr)
+    {
+        return _unconfiguredAcrs.get(acr) != null;
+    }
+
+    /**
+     * @return the descriptor of the authenticator with the given ACR, or null if no such authenticator is configured.
+     */
+    @Nullable
+    public AuthenticatorDescriptor getDescriptor(String acr)
+    {
+        @Nullable AuthenticatorDescriptor descriptor = _descriptors.get(acr);
+
+        if (descriptor != null || _unconfiguredAcrs.get(acr) != null)
+        {
+            return descriptor;
+        }
+
+        try
+        {
+            descriptor = _authenticatorDescriptorFactory.getAuthenticatorDescriptors(acr).getFirst();
+        }
+        catch (AuthenticatorNotConfiguredException e)
+        {
+            _logger.info("Authenticator listed on user's profile but not available in system: {}", acr);
+            _unconfiguredAcrs.put(acr, Boolean.TRUE);
+
+            return null;
+        }
+
+        _descriptors.put(acr, descriptor);
+
+        return descriptor;
+    }
+
+    /**
+     * @param acr  the ACR of the authenticator.
+     * @param name the name the user gave the factor.
+     * @return the model of the authenticator, or null if no authenticator with the given ACR is configured.
+     */
+    @Nullable
+    public AuthenticatorModel getModel(String acr, String name)
+    {
+        String key = acr + '\n' + name;
+        @Nullable AuthenticatorModel model = _models.get(key);
+
+        if (model != null)
+        {
+            return model;
+        }
+
+        @Nullable AuthenticatorDescriptor descriptor = getDescriptor(acr);
+
+        if (descriptor == null)
+        {
+            return null;
+        }
+
+        model = AuthenticatorModel.of(descriptor, name);
+        _models.put(key, model);
+
+        return model;
+    }
+
+    public void invalidateAll()
+    {
+        _descriptors.invalidateAll();
+        _unconfiguredAcrs.invalidateAll();
+        _models.invalidateAll();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * A size-bounded cache where entries expire a fixed time after they were written.
+ * <p>
+ * Entries are spread over a number of segments, each guarded by its own lock and evicting its least recently used
+ * entry when full, so that concurrent logins of different users rarely contend with each other.
+ */
+public final class BoundedTtlCache<K, V>
+{
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] _segments;
+    private final long _ttlNanos;
+    private final LongSupplier _nanoClock;
+    private final LongAdder _hits = new LongAdder();
+    private final LongAdder _misses = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+
+    public BoundedTtlCache(int maxEntries, long ttl, TimeUnit ttlUnit)
+    {
+        this(maxEntries, ttl, ttlUnit, System::nanoTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    BoundedTtlCache(int maxEntries, long ttl, TimeUnit ttlUnit, LongSupplier nanoClock)
+    {
+        if (maxEntries < 1)
+        {
+            throw new IllegalArgumentException("maxEntries has to be positive");
+        }
+
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries));
+        int entriesPerSegment = (maxEntries + segmentCount - 1) / segmentCount;
+
+        _segments = new Segment[segmentCount];
+
+        for (int i = 0; i < segmentCount; i++)
+        {
+            _segments[i] = new Segment<>(entriesPerSegment, _evictions);
+        }
+
+        _ttlNanos = ttlUnit.toNanos(ttl);
+        _nanoClock = nanoClock;
+    }
+
+    @Nullable
+    public V get(K key)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        long now = _nanoClock.getAsLong();
+
+        synchronized (segment)
+        {
+            CacheEntry<V> entry = segment.get(key);
+
+            if (entry != null && now - entry._writtenAt < _ttlNanos)
+            {
+                _hits.increment();
+                return entry._value;
+            }
+
+            if (entry != null)
+            {
+                segment.remove(key);
+                _evictions.increment();
+            }
+        }
+
+        _misses.increment();
+
+        return null;
+    }
+
+    public void put(K key, V value)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        CacheEntry<V> entry = new CacheEntry<>(value, _nanoClock.getAsLong());
+
+        synchronized (segment)
+        {
+            segment.put(key, entry);
+        }
+    }
+
+    /**
+     * Puts the value computed from the current value of the key, or from null if it has none or it has expired, in
+     * one step. Reading the current value this way does not count as a hit or a miss.
+     */
+    public void update(K key, UnaryOperator<V> valueFunction)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        long now = _nanoClock.getAsLong();
+
+        synchronized (segment)
+        {
+            CacheEntry<V> entry = segment.get(key);
+            V currentValue = entry != null && now - entry._writtenAt < _ttlNanos ? entry._value : null;
+
+            segment.put(key, new CacheEntry<>(valueFunction.apply(currentValue), now));
+        }
+    }
+
+    public void invalidate(K key)
+    {
+        Segment<K, V> segment = segmentFor(key);
+
+        synchronized (segment)
+        {
+            segment.remove(key);
+        }
+    }
+
+    public void invalidateAll()
+    {
+        for (Segment<K, V> segment : _segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Removes all expired entries. Expired entries are otherwise only dropped when they are read or pushed out by
+     * newer ones.
+     */
+    public void evictExpired()
+    {
+        long now = _nanoClock.getAsLong();
+
+        for (Segment<K, V> segment : _segments)
+        {
+            synchronized (segment)
+            {
+                Iterator<CacheEntry<V>> entries = segment.values().iterator();
+
+                while (entries.hasNext())
+                {
+                    if (now - entries.next()._writtenAt >= _ttlNanos)
+                    {
+                        entries.remove();
+                        _evictions.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for (Segment<K, V> segment : _segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    public long getHitCount()
+    {
+        return _hits.sum();
+    }
+
+    public long getMissCount()
+    {
+        return _misses.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return _evictions.sum();
+    }
+
+    private Segment<K, V> segmentFor(K key)
+    {
+        int hash = key.hashCode();
+
+        return _segments[(hash ^ (hash >>> 16)) & (_segments.length - 1)];
+    }
+
+    private static final class CacheEntry<V>
+    {
+        private final V _value;
+        private final long _writtenAt;
+
+        private CacheEntry(V value, long writtenAt)
+        {
+            _value = value;
+            _writtenAt = writtenAt;
+        }
+    }
+
+    private static final class Segment<K, V> extends LinkedHashMap<K, CacheEntry<V>>
+    {
+        private final int _maxEntries;
+        private final LongAdder _evictions;
+
+        private Segment(int maxEntries, LongAdder evictions)
+        {
+            super(16, 0.75f, true);
+            _maxEntries = maxEntries;
+            _evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest)
+        {
+            if (size() > _maxEntries)
+            {
+                _evictions.increment();
+                return true;
+            }
+
+            return false;
+        }
+    }
+}
@@ -5,26 +5,52 @@ import se.curity.identityserver.sdk.web.Request;
 
 public class ChooseFactorPostRequestModel
 {
+    @Nullable
     private final String _secondFactor;
     @Nullable
     private final String _rememberChoice;
 
     public ChooseFactorPostRequestModel(Request request)
     {
-        _secondFactor = request.getFormParameterValueOrError("secondFactor");
-        _rememberChoice = request.getFormParameterValueOrError("rememberChoice");
+        _secondFactor = getFormParameterValue(request, "secondFactor");
+        _rememberChoice = getFormParameterValue(request, "rememberChoice");
+    }
 
-        if (_secondFactor == null)
+    /**
+     * @return the value of the parameter, or null if it is missing or repeated, which no form of the plugin sends.
+     */
+    @Nullable
+    private static String getFormParameterValue(Request request, String name)
+    {
+        try
+        {
+            return request.getFormParameterValueOrError(name);
+        }
+        catch (RuntimeException e)
         {
-            throw new MissingSecondFactorParameterException();
+            return null;
         }
     }
 
+    /**
+     * @return true if the request names a single factor. The handler checks it, so that a malformed request costs no
+     * exception while it is parsed.
+     */
+    public boolean isValid()
+    {
+        return _secondFactor != null && !_secondFactor.isEmpty();
+    }
+
+    /**
+     * @return the ACR of the chosen factor, which is only null or empty if the request is not {@link #isValid() valid}.
+     */
+    @Nullable
     public String getSecondFactor()
     {
         return _secondFactor;
     }
 
+    @Nullable
     public String getRememberChoice()
     {
         return _rememberChoice;
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A short digest of a set of second factors, which is kept in the session instead of the factors themselves when
+ * they can be looked up again.
+ * <p>
+ * The digest covers the names and ACRs of the factors, in the order of their names, so that it does not depend on
+ * the order in which the account store returns them. It is truncated to 96 bits, which is plenty to notice that the
+ * factors of one user have changed.
+ */
+final class FactorSetDigest
+{
+    private static final int LENGTH_IN_BYTES = 12;
+
+    private FactorSetDigest()
+    {
+    }
+
+    static String of(Map<String, String> secondFactors)
+    {
+        MessageDigest digest = newSha256();
+
+        new TreeMap<>(secondFactors).forEach((name, acr) -> {
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(acr.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        });
+
+        byte[] truncated = new byte[LENGTH_IN_BYTES];
+        System.arraycopy(digest.digest(), 0, truncated, 0, LENGTH_IN_BYTES);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(truncated);
+    }
+
+    static boolean matches(String expectedDigest, Map<String, String> secondFactors)
+    {
+        return MessageDigest.isEqual(expectedDigest.getBytes(StandardCharsets.US_ASCII),
+                of(secondFactors).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static MessageDigest newSha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
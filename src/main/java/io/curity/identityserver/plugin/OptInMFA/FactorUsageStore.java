@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts, per user, how often each factor was used to complete a login, so that the most used factor can be shown
+ * first or chosen on the user's behalf.
+ * <p>
+ * Only the few most used factors of a user are counted, in two small arrays, and users who have not logged in within
+ * the retention period are forgotten. Counts are updated copy-on-write, so two logins of the same user completing at
+ * the same instant may count as one.
+ */
+public final class FactorUsageStore
+{
+    private static final int MAX_FACTORS_PER_USER = 8;
+
+    @Nullable
+    private final BoundedTtlCache<String, Usage> _usages;
+
+    private FactorUsageStore(@Nullable BoundedTtlCache<String, Usage> usages)
+    {
+        _usages = usages;
+    }
+
+    public static FactorUsageStore create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        boolean needed = configuration.getFactorOrdering() == OptInMFAAuthenticationActionConfig.FactorOrdering.MOST_USED_FIRST
+                || configuration.getAutoSelectFactorAfterUses() > 0;
+
+        if (!needed)
+        {
+            return new FactorUsageStore(null);
+        }
+
+        return new FactorUsageStore(new BoundedTtlCache<>(configuration.getFactorUsageMaxUsers(),
+                configuration.getFactorUsageRetentionDays(), TimeUnit.DAYS));
+    }
+
+    public boolean isEnabled()
+    {
+        return _usages != null;
+    }
+
+    public void recordUse(String subject, String acr)
+    {
+        if (_usages == null)
+        {
+            return;
+        }
+
+        @Nullable Usage usage = _usages.get(subject);
+        _usages.put(subject, usage == null ? new Usage(acr) : usage.withUse(acr));
+    }
+
+    /**
+     * @return the factor the user has used the most, or null if the user has not been seen.
+     */
+    @Nullable
+    public String getMostUsedAcr(String subject)
+    {
+        @Nullable Usage usage = _usages == null ? null : _usages.get(subject);
+
+        return usage == null ? null : usage._acrs[0];
+    }
+
+    /**
+     * @return the number of times the user has used their most used factor.
+     */
+    public int getMostUsedCount(String subject)
+    {
+        @Nullable Usage usage = _usages == null ? null : _usages.get(subject);
+
+        return usage == null ? 0 : usage._counts[0];
+    }
+
+    /**
+     * Forgets how often the user has used each factor, so that none is chosen on their behalf until they have used
+     * one often enough again.
+     */
+    public void forget(String subject)
+    {
+        if (_usages != null)
+        {
+            _usages.invalidate(subject);
+        }
+    }
+
+    public void invalidateAll()
+    {
+        if (_usages != null)
+        {
+            _usages.invalidateAll();
+        }
+    }
+
+    public int size()
+    {
+        return _usages == null ? 0 : _usages.size();
+    }
+
+    /**
+     * The use counts of a user's factors, kept sorted with the most used first.
+     */
+    private static final class Usage
+    {
+        private final String[] _acrs;
+        private final int[] _counts;
+
+        private Usage(String acr)
+        {
+            this(new String[]{acr}, new int[]{1});
+        }
+
+        private Usage(String[] acrs, int[] counts)
+        {
+            _acrs = acrs;
+            _counts = counts;
+        }
+
+        private Usage withUse(String acr)
+        {
+            int index = Arrays.asList(_acrs).indexOf(acr);
+            String[] acrs;
+            int[] counts;
+
+            if (index >= 0)
+            {
+                acrs = _acrs.clone();
+                counts = _counts.clone();
+                counts[index] = counts[index] == Integer.MAX_VALUE ? Integer.MAX_VALUE : counts[index] + 1;
+            }
+            else if (_acrs.length < MAX_FACTORS_PER_USER)
+            {
+                acrs = Arrays.copyOf(_acrs, _acrs.length + 1);
+                counts = Arrays.copyOf(_counts, _counts.length + 1);
+                index = acrs.length - 1;
+                acrs[index] = acr;
+                counts[index] = 1;
+            }
+            else
+            {
+                // The least used factor makes room for the new one
+                acrs = _acrs.clone();
+                counts = _counts.clone();
+                index = acrs.length - 1;
+                acrs[index] = acr;
+                counts[index] = 1;
+            }
+
+            // Move the updated factor up past the factors it now has been used more often than
+            while (index > 0 && counts[index] > counts[index - 1])
+            {
+                String swappedAcr = acrs[index - 1];
+                int swappedCount = counts[index - 1];
+                acrs[index - 1] = acrs[index];
+                counts[index - 1] = counts[index];
+                acrs[index] = swappedAcr;
+                counts[index] = swappedCount;
+                index--;
+            }
+
+            return new Usage(acrs, counts);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the second factors of users from a local, read-only index file, so that no account store is involved.
+ * <p>
+ * The file is UTF-8 text with one line per user: the subject followed by the name and ACR of each factor, all
+ * separated by tabs. The lines have to be sorted by the bytes of the subject, as {@code LC_ALL=C sort} does, so that a
+ * user can be found by binary search directly in the memory-mapped file, without reading the file onto the heap.
+ * Files of up to 2 GB are supported.
+ * <p>
+ * The file is checked for changes periodically, and a changed file is mapped and validated in the background before
+ * it replaces the previous one in a single step. A file which cannot be read or is not sorted is ignored, and the
+ * previous one is used until it is fixed. The file should be replaced by renaming a new file over it, since a file
+ * which is truncated while it is mapped cannot be read safely.
+ */
+public final class IndexFileSecondFactorSource implements SecondFactorSource
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final byte SEPARATOR = '\t';
+    private static final byte NEWLINE = '\n';
+    private static final byte CARRIAGE_RETURN = '\r';
+
+    private final Path _path;
+    @Nullable
+    private final ScheduledExecutorService _reloadScheduler;
+    private volatile Index _index = Index.EMPTY;
+
+    /**
+     * @param path                 the index file.
+     * @param checkIntervalSeconds how often to check the file for changes, or 0 to only check on
+     *                             {@link #reloadIfChanged()}.
+     * @param threadName           the name of the thread which checks the file.
+     */
+    IndexFileSecondFactorSource(Path path, int checkIntervalSeconds, String threadName)
+    {
+        _path = path;
+
+        reloadIfChanged();
+
+        if (checkIntervalSeconds > 0)
+        {
+            _reloadScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            _reloadScheduler.scheduleWithFixedDelay(this::reloadIfChanged, checkIntervalSeconds, checkIntervalSeconds,
+                    TimeUnit.SECONDS);
+        }
+        else
+        {
+            _reloadScheduler = null;
+        }
+    }
+
+    public static IndexFileSecondFactorSource create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        String path = configuration.getSecondFactorIndexFile().orElseThrow(() -> new IllegalStateException(
+                "An index file has to be configured to read second factors from an index file"));
+
+        return new IndexFileSecondFactorSource(Paths.get(path), configuration.getSecondFactorIndexFileCheckIntervalSeconds(),
+                "optinmfa-index-file-" + configuration.id());
+    }
+
+    @Override
+    @Nullable
+    public Map<String, String> getSecondFactors(String subject)
+    {
+        return _index.getSecondFactors(subject.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the number of users in the index in use.
+     */
+    public int size()
+    {
+        return _index._lineCount;
+    }
+
+    /**
+     * Maps the file again if it has been replaced or modified since it was last mapped.
+     */
+    void reloadIfChanged()
+    {
+        Index current = _index;
+
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(_path, BasicFileAttributes.class);
+
+            if (current.isMappedFrom(attributes))
+            {
+                return;
+            }
+
+            Index index = Index.map(_path, attributes);
+            _index = index;
+
+            _logger.info("Loaded {} users' second factors from {}", index._lineCount, _path);
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            _logger.warn("Could not load second factors from {}, still using the {} users loaded before: {}",
+                    _path, current._lineCount, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        if (_reloadScheduler != null)
+        {
+            _reloadScheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * A mapped and validated index file. Only absolute reads are made from the buffer, so it can be shared by all
+     * threads.
+     */
+    private static final class Index
+    {
+        static final Index EMPTY = new Index(ByteBuffer.allocate(0), 0, null, null, -1);
+
+        private final ByteBuffer _buffer;
+        private final int _lineCount;
+        @Nullable
+        private final Object _fileKey;
+        @Nullable
+        private final Object _lastModifiedTime;
+        private final long _fileSize;
+
+        private Index(ByteBuffer buffer, int lineCount, @Nullable Object fileKey, @Nullable Object lastModifiedTime,
+                      long fileSize)
+        {
+            _buffer = buffer;
+            _lineCount = lineCount;
+            _fileKey = fileKey;
+            _lastModifiedTime = lastModifiedTime;
+            _fileSize = fileSize;
+        }
+
+        static Index map(Path path, BasicFileAttributes attributes) throws IOException
+        {
+            if (attributes.size() > Integer.MAX_VALUE)
+            {
+                throw new IllegalArgumentException("The index file is larger than 2 GB");
+            }
+
+            ByteBuffer buffer;
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+            }
+
+            return new Index(buffer, countSortedLines(buffer), attributes.fileKey(), attributes.lastModifiedTime(),
+                    attributes.size());
+        }
+
+        boolean isMappedFrom(BasicFileAttributes attributes)
+        {
+            return Objects.equals(_fileKey, attributes.fileKey())
+                    && Objects.equals(_lastModifiedTime, attributes.lastModifiedTime())
+                    && _fileSize == attributes.size();
+        }
+
+        /**
+         * @throws IllegalArgumentException if the lines are not sorted by subject, or a subject occurs twice.
+         */
+        private static int countSortedLines(ByteBuffer buffer)
+        {
+            int lineCount = 0;
+            int previousLineStart = -1;
+
+            for (int lineStart = 0; lineStart < buffer.limit(); lineStart = endOfLine(buffer, lineStart) + 1)
+            {
+                if (previousLineStart >= 0 && compareSubjects(buffer, previousLineStart, lineStart) >= 0)
+                {
+                    throw new IllegalArgumentException("The line at byte " + lineStart +
+                            " is not sorted after the line before it");
+                }
+
+                previousLineStart = lineStart;
+                lineCount++;
+            }
+
+            return lineCount;
+        }
+
+        @Nullable
+        Map<String, String> getSecondFactors(byte[] subject)
+        {
+            int size = _buffer.limit();
+            int low = 0;
+            int high = size;
+
+            // Lines starting before low have smaller subjects, and lines starting at or after high do not
+            while (low < high)
+            {
+                int lineStart = startOfLine(_buffer, (low + high) >>> 1);
+
+                if (compareSubject(_buffer, lineStart, subject) < 0)
+                {
+                    low = endOfLine(_buffer, lineStart) + 1;
+                }
+                else
+                {
+                    high = lineStart;
+                }
+            }
+
+            if (low >= size || compareSubject(_buffer, low, subject) != 0)
+            {
+                return null;
+            }
+
+            return parseFactors(_buffer, low + subject.length, endOfLine(_buffer, low));
+        }
+
+        /**
+         * @param start the position of the separator after the subject, or of the end of the line.
+         */
+        @Nullable
+        private static Map<String, String> parseFactors(ByteBuffer buffer, int start, int end)
+        {
+            if (end > start && buffer.get(end - 1) == CARRIAGE_RETURN)
+            {
+                end--;
+            }
+
+            Map<String, String> secondFactors = new LinkedHashMap<>();
+            int position = start;
+
+            while (position < end)
+            {
+                int nameEnd = endOfField(buffer, position + 1, end);
+                int acrEnd = endOfField(buffer, nameEnd + 1, end);
+
+                if (nameEnd < end)
+                {
+                    secondFactors.put(decode(buffer, position + 1, nameEnd), decode(buffer, nameEnd + 1, acrEnd));
+                }
+
+                position = acrEnd;
+            }
+
+            return secondFactors.isEmpty() ? null : Collections.unmodifiableMap(secondFactors);
+        }
+
+        private static int compareSubject(ByteBuffer buffer, int lineStart, byte[] subject)
+        {
+            int subjectEnd = endOfSubject(buffer, lineStart);
+            int length = subjectEnd - lineStart;
+
+            for (int i = 0; i < Math.min(length, subject.length); i++)
+            {
+                int comparison = Integer.compare(buffer.get(lineStart + i) & 0xff, subject[i] & 0xff);
+
+                if (comparison != 0)
+                {
+                    return comparison;
+                }
+            }
+
+            return Integer.compare(length, subject.length);
+        }
+
+        private static int compareSubjects(ByteBuffer buffer, int firstLineStart, int secondLineStart)
+        {
+            int firstLength = endOfSubject(buffer, firstLineStart) - firstLineStart;
+            int secondLength = endOfSubject(buffer, secondLineStart) - secondLineStart;
+
+            for (int i = 0; i < Math.min(firstLength, secondLength); i++)
+            {
+                int comparison = Integer.compare(buffer.get(firstLineStart + i) & 0xff,
+                        buffer.get(secondLineStart + i) & 0xff);
+
+                if (comparison != 0)
+                {
+                    return comparison;
+                }
+            }
+
+            return Integer.compare(firstLength, secondLength);
+        }
+
+        private static int startOfLine(ByteBuffer buffer, int position)
+        {
+            while (position > 0 && buffer.get(position - 1) != NEWLINE)
+            {
+                position--;
+            }
+
+            return position;
+        }
+
+        /**
+         * @return the position of the newline ending the line, or the end of the buffer.
+         */
+        private static int endOfLine(ByteBuffer buffer, int position)
+        {
+            while (position < buffer.limit() && buffer.get(position) != NEWLINE)
+            {
+                position++;
+            }
+
+            return position;
+        }
+
+        private static int endOfSubject(ByteBuffer buffer, int lineStart)
+        {
+            int position = lineStart;
+
+            while (position < buffer.limit() && buffer.get(position) != SEPARATOR && buffer.get(position) != NEWLINE)
+            {
+                position++;
+            }
+
+            boolean endOfLine = position == buffer.limit() || buffer.get(position) == NEWLINE;
+
+            // A user without factors, on a line ending in CRLF
+            return endOfLine && position > lineStart && buffer.get(position - 1) == CARRIAGE_RETURN
+                    ? position - 1
+                    : position;
+        }
+
+        private static int endOfField(ByteBuffer buffer, int position, int end)
+        {
+            while (position < end && buffer.get(position) != SEPARATOR)
+            {
+                position++;
+            }
+
+            return Math.min(position, end);
+        }
+
+        private static String decode(ByteBuffer buffer, int start, int end)
+        {
+            byte[] bytes = new byte[end - start];
+
+            for (int i = 0; i < bytes.length; i++)
+            {
+                bytes[i] = buffer.get(start + i);
+            }
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Locale;
+
+/**
+ * What one call of the action did and how long its dependencies took, for finding out why a login was slow.
+ * <p>
+ * A trace is bound to the request thread while the action runs, so that {@link OptInMFAMetrics} can add the
+ * operations it times to it without the trace being passed around. It is only written by that thread, and handed over
+ * to the thread that logs it once the call is done.
+ */
+final class LoginTrace
+{
+    private static final ThreadLocal<LoginTrace> CURRENT = new ThreadLocal<>();
+
+    private final String _transactionId;
+    private String _phase = "none";
+    @Nullable
+    private OptInMFAMetrics.Outcome _outcome;
+    private int _factorCount = -1;
+    private long _accountLookupNanos;
+    private long _descriptorResolutionNanos;
+    private int _sessionOperations;
+    private long _applyNanos;
+
+    LoginTrace(String transactionId)
+    {
+        _transactionId = transactionId;
+    }
+
+    /**
+     * @return the trace of the call of the action running on this thread, or null if the call is not traced.
+     */
+    @Nullable
+    static LoginTrace current()
+    {
+        return CURRENT.get();
+    }
+
+    void bind()
+    {
+        CURRENT.set(this);
+    }
+
+    void unbind()
+    {
+        CURRENT.remove();
+    }
+
+    void setPhase(@Nullable OptInMFAState.Phase phase)
+    {
+        _phase = phase == null ? "none" : phase.name().toLowerCase(Locale.ROOT);
+    }
+
+    void setFactorCount(int factorCount)
+    {
+        _factorCount = factorCount;
+    }
+
+    void record(OptInMFAMetrics.Outcome outcome)
+    {
+        _outcome = outcome;
+    }
+
+    void record(OptInMFAMetrics.Operation operation, long durationNanos)
+    {
+        switch (operation)
+        {
+            case APPLY:
+                _applyNanos = durationNanos;
+                break;
+            case ACCOUNT_LOOKUP:
+                _accountLookupNanos += durationNanos;
+                break;
+            case DESCRIPTOR_RESOLUTION:
+                _descriptorResolutionNanos += durationNanos;
+                break;
+            case SESSION_READ:
+            case SESSION_WRITE:
+                _sessionOperations++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    String getTransactionId()
+    {
+        return _transactionId;
+    }
+
+    @Nullable
+    OptInMFAMetrics.Outcome getOutcome()
+    {
+        return _outcome;
+    }
+
+    int getSessionOperations()
+    {
+        return _sessionOperations;
+    }
+
+    long getAccountLookupNanos()
+    {
+        return _accountLookupNanos;
+    }
+
+    /**
+     * @return the trace as space separated key=value pairs, with durations in milliseconds.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ROOT,
+                "transaction=%s phase=%s branch=%s factors=%d account-lookup-ms=%.3f descriptor-resolution-ms=%.3f session-ops=%d apply-ms=%.3f",
+                _transactionId, _phase, _outcome == null ? "none" : _outcome.getLabel(), _factorCount,
+                _accountLookupNanos / 1e6, _descriptorResolutionNanos / 1e6, _sessionOperations, _applyNanos / 1e6);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traces a sample of the calls of the action, and logs each trace as one line on the logger of {@link LoginTrace}.
+ * <p>
+ * Whether a call is traced depends on its authentication transaction only, so either all calls of a transaction are
+ * traced or none are. Finished traces are put in a bounded buffer, which a daemon thread drains to the logger; when
+ * the buffer is full, the trace is dropped rather than making the request wait for the logger.
+ */
+public final class LoginTracer
+{
+    private static final Logger _traceLogger = LoggerFactory.getLogger(LoginTrace.class);
+
+    private final int _samplingPercentage;
+    private final BlockingQueue<LoginTrace> _buffer;
+    private final LongAdder _droppedCount = new LongAdder();
+    @Nullable
+    private final Thread _writer;
+
+    LoginTracer(int samplingPercentage, int bufferSize, @Nullable String writerThreadName)
+    {
+        _samplingPercentage = samplingPercentage;
+        _buffer = new ArrayBlockingQueue<>(bufferSize);
+
+        if (writerThreadName != null)
+        {
+            _writer = new Thread(this::writeTraces, writerThreadName);
+            _writer.setDaemon(true);
+            _writer.start();
+        }
+        else
+        {
+            _writer = null;
+        }
+    }
+
+    /**
+     * @return the tracer, or null if tracing is disabled.
+     */
+    @Nullable
+    public static LoginTracer create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        if (!isEnabled(configuration))
+        {
+            return null;
+        }
+
+        return new LoginTracer(configuration.getTraceSamplingPercentage(), configuration.getTraceBufferSize(),
+                "optinmfa-trace-" + configuration.id());
+    }
+
+    static boolean isEnabled(OptInMFAAuthenticationActionConfig configuration)
+    {
+        return configuration.getTraceSamplingPercentage() > 0;
+    }
+
+    /**
+     * Starts tracing a call of the action on this thread, if its transaction is sampled.
+     *
+     * @return the trace to pass to {@link #finish(LoginTrace)}, or null if the call is not traced.
+     */
+    @Nullable
+    LoginTrace start(String authenticationTransactionId)
+    {
+        if (Math.floorMod(authenticationTransactionId.hashCode(), 100) >= _samplingPercentage)
+        {
+            return null;
+        }
+
+        LoginTrace trace = new LoginTrace(authenticationTransactionId);
+        trace.bind();
+
+        return trace;
+    }
+
+    void finish(LoginTrace trace)
+    {
+        trace.unbind();
+
+        if (!_buffer.offer(trace))
+        {
+            _droppedCount.increment();
+        }
+    }
+
+    /**
+     * @return the oldest trace not yet logged, or null if there is none.
+     */
+    @Nullable
+    LoginTrace poll()
+    {
+        return _buffer.poll();
+    }
+
+    public long getDroppedCount()
+    {
+        return _droppedCount.sum();
+    }
+
+    public int size()
+    {
+        return _buffer.size();
+    }
+
+    public void close()
+    {
+        if (_writer != null)
+        {
+            _writer.interrupt();
+        }
+    }
+
+    private void writeTraces()
+    {
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                LoginTrace trace = _buffer.take();
+                _traceLogger.info("{}", trace);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -15,8 +15,13 @@
  */
 package io.curity.identityserver.plugin.OptInMFA;
 
-public class MissingSecondFactorParameterException extends RuntimeException
+/**
+ * Thrown when a factor is chosen without naming exactly one.
+ */
+public class MissingSecondFactorParameterException extends StacklessException
 {
+    static final MissingSecondFactorParameterException INSTANCE = new MissingSecondFactorParameterException();
+
     public MissingSecondFactorParameterException()
     {
         super("`secondFactor` parameter is required.");
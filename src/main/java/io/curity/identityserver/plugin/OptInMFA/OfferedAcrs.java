@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * The ACRs a user was offered, kept with the prompt so that a chosen ACR can be checked without looking the factors of
+ * the user up again.
+ * <p>
+ * Each distinct ACR is hashed to 48 bits, which encode to exactly 8 characters, and the encoded hashes are
+ * concatenated in sorted order. A user has a handful of factors, so checking an ACR is a hash and a few comparisons
+ * of the hashes themselves, and the set costs 8 bytes per factor in the session.
+ */
+final class OfferedAcrs
+{
+    private static final int HASH_LENGTH_IN_BYTES = 6;
+    private static final int ENCODED_HASH_LENGTH = 8;
+    private static final int BITS_PER_CHARACTER = 6;
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+    private static final byte[] ALPHABET_INDEX = new byte[128];
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(OfferedAcrs::newSha256);
+
+    static
+    {
+        Arrays.fill(ALPHABET_INDEX, (byte) -1);
+
+        for (int i = 0; i < ALPHABET.length; i++)
+        {
+            ALPHABET_INDEX[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private OfferedAcrs()
+    {
+    }
+
+    static String encode(Collection<String> acrs)
+    {
+        TreeSet<String> hashes = new TreeSet<>();
+        acrs.forEach(acr -> hashes.add(encodeHash(hash(acr))));
+
+        StringBuilder encoded = new StringBuilder(hashes.size() * ENCODED_HASH_LENGTH);
+        hashes.forEach(encoded::append);
+
+        return encoded.toString();
+    }
+
+    static boolean contains(String encodedAcrs, String acr)
+    {
+        long hash = hash(acr);
+
+        for (int offset = 0; offset + ENCODED_HASH_LENGTH <= encodedAcrs.length(); offset += ENCODED_HASH_LENGTH)
+        {
+            if (decodeHash(encodedAcrs, offset) == hash)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the first 48 bits of the SHA-256 digest of the ACR.
+     */
+    private static long hash(String acr)
+    {
+        byte[] digest = SHA_256.get().digest(acr.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+
+        for (int i = 0; i < HASH_LENGTH_IN_BYTES; i++)
+        {
+            hash = (hash << Byte.SIZE) | (digest[i] & 0xFF);
+        }
+
+        return hash;
+    }
+
+    /**
+     * Encodes the hash as URL-safe Base64 without padding, which is what encoding its 6 bytes would give.
+     */
+    private static String encodeHash(long hash)
+    {
+        char[] encoded = new char[ENCODED_HASH_LENGTH];
+
+        for (int i = ENCODED_HASH_LENGTH - 1; i >= 0; i--)
+        {
+            encoded[i] = ALPHABET[(int) (hash & (ALPHABET.length - 1))];
+            hash >>>= BITS_PER_CHARACTER;
+        }
+
+        return new String(encoded);
+    }
+
+    /**
+     * @return the hash encoded at the offset, or -1, which is never a hash, if the characters there are not an
+     * encoded hash.
+     */
+    private static long decodeHash(String encodedAcrs, int offset)
+    {
+        long hash = 0;
+
+        for (int i = offset; i < offset + ENCODED_HASH_LENGTH; i++)
+        {
+            char character = encodedAcrs.charAt(i);
+            int value = character < ALPHABET_INDEX.length ? ALPHABET_INDEX[character] : -1;
+
+            if (value < 0)
+            {
+                return -1;
+            }
+
+            hash = (hash << BITS_PER_CHARACTER) | value;
+        }
+
+        return hash;
+    }
+
+    private static MessageDigest newSha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
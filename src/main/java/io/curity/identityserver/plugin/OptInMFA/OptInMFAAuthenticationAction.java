@@ -17,24 +17,29 @@ package io.curity.identityserver.plugin.OptInMFA;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import se.curity.identityserver.sdk.NonEmptyList;
 import se.curity.identityserver.sdk.Nullable;
-import se.curity.identityserver.sdk.attribute.AccountAttributes;
 import se.curity.identityserver.sdk.attribute.Attribute;
 import se.curity.identityserver.sdk.attribute.AuthenticationAttributes;
-import se.curity.identityserver.sdk.attribute.MapAttributeValue;
 import se.curity.identityserver.sdk.authentication.AuthenticatedSessions;
 import se.curity.identityserver.sdk.authenticationaction.AuthenticationAction;
 import se.curity.identityserver.sdk.authenticationaction.AuthenticationActionResult;
-import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException;
-import se.curity.identityserver.sdk.service.AccountManager;
-import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor;
-import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
 
 import java.lang.invoke.MethodHandles;
 import java.util.Map;
 
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.APPLY;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.DESCRIPTOR_RESOLUTION;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.AUTHENTICATE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.AUTO_SELECTED;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.FAILED_ACCOUNT_LOOKUP;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.FAILED_NO_FACTORS;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.INVALID_ACR;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.PROMPT;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.RATE_LIMITED;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.SINGLE_FACTOR;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.SUCCESS_ALREADY_AUTHENTICATED;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.SUCCESS_CHOSEN_FACTOR;
 import static se.curity.identityserver.sdk.authenticationaction.completions.RequiredActionCompletion.AuthenticateUser.authenticate;
 import static se.curity.identityserver.sdk.authenticationaction.completions.RequiredActionCompletion.PromptUser.prompt;
 
@@ -45,18 +50,52 @@ public final class OptInMFAAuthenticationAction implements AuthenticationAction
     public static final String IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE = ATTRIBUTE_PREFIX + "is-second-factor-chosen";
     public static final String AVAILABLE_SECOND_FACTORS_ATTRIBUTE = ATTRIBUTE_PREFIX + "second-factors";
     public static final String REMEMBER_CHOICE_COOKIE_NAME = "rememberSecondFactorChoice";
+    /**
+     * Context attribute which, when present, makes the action bypass the cached second factors of the user and read
+     * them from the account again, e.g. because the user has just registered or removed a factor.
+     */
+    public static final String REFRESH_SECOND_FACTORS_ATTRIBUTE = ATTRIBUTE_PREFIX + "refresh-second-factors";
 
     private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private final AccountManager _accountManager;
-    private final AuthenticatorDescriptorFactory _authenticatorDescriptorFactory;
-    private final SessionManager _sessionManager;
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
+    private final OptInMFASessionStore _sessionStore;
+    private final SecondFactorsCache _secondFactorsCache;
+    private final SecondFactorsLookup _secondFactorsLookup;
+    private final OptInMFAMetrics _metrics;
+    @Nullable
+    private final String _prefetchedSecondFactorsAttribute;
+    @Nullable
+    private final String _secondFactorsVersionAttribute;
+    @Nullable
+    private final RequestRateLimits _requestRateLimits;
+    @Nullable
+    private final LoginTracer _loginTracer;
+    private final FactorUsageStore _factorUsageStore;
+    private final AuthenticatedSessionPolicy _authenticatedSessionPolicy;
+    private final StartupWarmUp _startupWarmUp;
+    private final int _autoSelectFactorAfterUses;
+    private final boolean _promptSkippedForSingleFactor;
+    private final boolean _secondFactorsStoredAsDigest;
 
-    public OptInMFAAuthenticationAction(OptInMFAAuthenticationActionConfig configuration)
+    public OptInMFAAuthenticationAction(OptInMFAAuthenticationActionConfig configuration, OptInMFAManagedObject managedObject)
     {
-        _accountManager = configuration.getAccountManager();
-        _authenticatorDescriptorFactory = configuration.getAuthenticatorDescriptorFactory();
-        _sessionManager = configuration.getSessionManager();
+        _secondFactorsCache = managedObject.getSecondFactorsCache();
+        _secondFactorsLookup = new SecondFactorsLookup(managedObject);
+        _authenticatorModelRegistry = managedObject.getAuthenticatorModelRegistry();
+        _metrics = managedObject.getMetrics();
+        _prefetchedSecondFactorsAttribute = configuration.getPrefetchedSecondFactorsAttribute().orElse(null);
+        _secondFactorsVersionAttribute = configuration.getSecondFactorsVersionAttribute().orElse(null);
+        _requestRateLimits = managedObject.getRequestRateLimits();
+        _loginTracer = managedObject.getLoginTracer();
+        _factorUsageStore = managedObject.getFactorUsageStore();
+        _authenticatedSessionPolicy = managedObject.getAuthenticatedSessionPolicy();
+        _startupWarmUp = managedObject.getStartupWarmUp();
+        _autoSelectFactorAfterUses = configuration.getAutoSelectFactorAfterUses();
+        _promptSkippedForSingleFactor = configuration.isPromptSkippedForSingleFactor();
+        _secondFactorsStoredAsDigest = configuration.getSessionSecondFactorsEncoding() ==
+                OptInMFAAuthenticationActionConfig.SecondFactorsEncoding.DIGEST;
+        _sessionStore = new OptInMFASessionStore(configuration.getSessionManager(), configuration, _metrics);
     }
 
     @Override
@@ -65,61 +104,303 @@ public final class OptInMFAAuthenticationAction implements AuthenticationAction
                                             String authenticationTransactionId,
                                             AuthenticatorDescriptor authenticatorDescriptor)
     {
-        @Nullable Attribute isSecondFactorChosenAttribute = _sessionManager.get(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE);
+        @Nullable LoginTrace trace = _loginTracer == null ? null : _loginTracer.start(authenticationTransactionId);
+        long startTime = _metrics.startTimer();
 
-        if (isSecondFactorChosenAttribute != null)
+        try
         {
-            return handleActionWhenSecondFactorChosen(authenticatedSessions, authenticationAttributes);
+            if (_requestRateLimits != null &&
+                    !_requestRateLimits.tryAcquireForAction(authenticationAttributes.getSubject(), authenticationTransactionId))
+            {
+                _metrics.record(RATE_LIMITED);
+                return AuthenticationActionResult.failedResult("Too many requests.");
+            }
+
+            _startupWarmUp.resolveAuthenticators();
+
+            @Nullable OptInMFAState state = _sessionStore.read(OptInMFAState.Phase.CHOSEN);
+
+            if (trace != null)
+            {
+                trace.setPhase(state == null ? null : state.getPhase());
+            }
+
+            @Nullable String firstFactorAcr = authenticatorDescriptor == null ? null : authenticatorDescriptor.getAcr();
+
+            if (state != null && state.getPhase() == OptInMFAState.Phase.CHOSEN)
+            {
+                return handleActionWhenSecondFactorChosen(state, authenticatedSessions, authenticationAttributes,
+                        firstFactorAcr);
+            }
+            else
+            {
+                return handleActionWhenSecondFactorNotSet(authenticationAttributes, authenticatedSessions,
+                        firstFactorAcr, true);
+            }
         }
-        else
+        finally
         {
-            return handleActionWhenSecondFactorNotSet(authenticationAttributes, authenticatedSessions);
+            _metrics.record(APPLY, startTime);
+
+            if (trace != null)
+            {
+                _loginTracer.finish(trace);
+            }
         }
     }
 
-    private AuthenticationActionResult handleActionWhenSecondFactorChosen(AuthenticatedSessions authenticatedSessions, AuthenticationAttributes authenticationAttributes)
+    private AuthenticationActionResult handleActionWhenSecondFactorChosen(OptInMFAState state, AuthenticatedSessions authenticatedSessions, AuthenticationAttributes authenticationAttributes,
+                                                                          @Nullable String firstFactorAcr)
     {
-        String secondFactorAcr = _sessionManager.get(CHOSEN_SECOND_FACTOR_ATTRIBUTE).getValueOfType(String.class);
+        String secondFactorAcr = state.getChosenAcr();
 
         if (authenticatedSessions.contains(secondFactorAcr))
         {
-            _sessionManager.remove(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE);
-            _sessionManager.remove(CHOSEN_SECOND_FACTOR_ATTRIBUTE);
+            _sessionStore.clear(state);
+            _factorUsageStore.recordUse(authenticationAttributes.getSubject(), secondFactorAcr);
 
+            _metrics.record(SUCCESS_CHOSEN_FACTOR);
             return AuthenticationActionResult.successfulResult(authenticationAttributes);
         }
 
-        try
+        if (state.isAutoSelected())
         {
-            NonEmptyList<AuthenticatorDescriptor> authenticators = _authenticatorDescriptorFactory.getAuthenticatorDescriptors(secondFactorAcr);
-            return AuthenticationActionResult.pendingResult(authenticate(authenticators.getFirst()));
+            // The user has come back without authenticating with the factor chosen for them, e.g. because they no
+            // longer have it, so they are shown the list and the factor is not chosen for them again
+            _factorUsageStore.forget(authenticationAttributes.getSubject());
+
+            return handleActionWhenSecondFactorNotSet(authenticationAttributes, authenticatedSessions, firstFactorAcr,
+                    false);
         }
-        catch (AuthenticatorNotConfiguredException e)
+
+        long resolutionStartTime = _metrics.startTimer();
+        @Nullable AuthenticatorDescriptor authenticator = _authenticatorModelRegistry.getDescriptor(secondFactorAcr);
+        _metrics.record(DESCRIPTOR_RESOLUTION, resolutionStartTime);
+
+        if (authenticator == null)
         {
             _logger.info("Invalid authenticator chosen as second factor, or authenticator not configured: {}", secondFactorAcr);
+            _metrics.record(INVALID_ACR);
             throw new IllegalStateException("Invalid authenticator chosen.");
         }
+
+        _metrics.record(AUTHENTICATE);
+        return AuthenticationActionResult.pendingResult(authenticate(authenticator));
     }
 
-    private AuthenticationActionResult handleActionWhenSecondFactorNotSet(AuthenticationAttributes authenticationAttributes, AuthenticatedSessions authenticatedSessions)
+    private AuthenticationActionResult handleActionWhenSecondFactorNotSet(AuthenticationAttributes authenticationAttributes, AuthenticatedSessions authenticatedSessions,
+                                                                          @Nullable String firstFactorAcr, boolean autoSelectAllowed)
     {
-        AccountAttributes user = _accountManager.getByUserName(authenticationAttributes.getSubject());
+        @Nullable Map<String, String> secondFactors;
 
-        Map<String, String> secondFactors = user.getOptionalValue("secondFactors", Map.class);
+        try
+        {
+            secondFactors = getSecondFactors(authenticationAttributes);
+        }
+        catch (SecondFactorsUnavailableException e)
+        {
+            _logger.info(e.getMessage());
+            _metrics.record(FAILED_ACCOUNT_LOOKUP);
+            return AuthenticationActionResult.failedResult("Second factors of the user could not be looked up.");
+        }
+
+        @Nullable LoginTrace trace = LoginTrace.current();
+
+        if (trace != null)
+        {
+            trace.setFactorCount(secondFactors == null ? 0 : secondFactors.size());
+        }
 
         if (secondFactors == null || secondFactors.isEmpty())
         {
             // TODO: allow to register first factor
+            _metrics.record(FAILED_NO_FACTORS);
             return AuthenticationActionResult.failedResult("secondFactor authenticators have to be set!");
         }
 
-        if (secondFactors.values().stream().anyMatch(authenticatedSessions::contains))
+        if (_authenticatedSessionPolicy.findSatisfyingAcr(secondFactors.values(), firstFactorAcr, authenticatedSessions) != null)
         {
+            _metrics.record(SUCCESS_ALREADY_AUTHENTICATED);
             return AuthenticationActionResult.successfulResult(authenticationAttributes);
         }
 
-        _sessionManager.put(Attribute.of(AVAILABLE_SECOND_FACTORS_ATTRIBUTE, MapAttributeValue.of(secondFactors)));
+        @Nullable AuthenticatorDescriptor singleAuthenticator = getSingleAuthenticator(secondFactors);
 
+        if (singleAuthenticator != null)
+        {
+            return authenticateWithoutPrompt(singleAuthenticator, SINGLE_FACTOR);
+        }
+
+        @Nullable AuthenticatorDescriptor mostUsedAuthenticator = autoSelectAllowed
+                ? getAutoSelectedAuthenticator(authenticationAttributes.getSubject(), secondFactors)
+                : null;
+
+        if (mostUsedAuthenticator != null)
+        {
+            return authenticateWithoutPrompt(mostUsedAuthenticator, AUTO_SELECTED);
+        }
+
+        String subject = authenticationAttributes.getSubject();
+        _sessionStore.write(_secondFactorsStoredAsDigest
+                ? OptInMFAState.promptingWithDigest(subject, secondFactors)
+                : OptInMFAState.prompting(subject, secondFactors));
+
+        _metrics.record(PROMPT);
         return AuthenticationActionResult.pendingResult(prompt());
     }
+
+    /**
+     * @return the authenticator of the only factor of the user which is configured, or null if the user has a choice
+     * to make or skipping the prompt for such users is disabled.
+     */
+    @Nullable
+    private AuthenticatorDescriptor getSingleAuthenticator(Map<String, String> secondFactors)
+    {
+        if (!_promptSkippedForSingleFactor)
+        {
+            return null;
+        }
+
+        @Nullable String singleAcr = null;
+        @Nullable AuthenticatorDescriptor singleAuthenticator = null;
+
+        for (String acr : secondFactors.values())
+        {
+            if (acr.equals(singleAcr))
+            {
+                continue;
+            }
+
+            @Nullable AuthenticatorDescriptor authenticator = resolve(acr);
+
+            if (authenticator == null)
+            {
+                continue;
+            }
+
+            if (singleAuthenticator != null)
+            {
+                return null;
+            }
+
+            singleAcr = acr;
+            singleAuthenticator = authenticator;
+        }
+
+        return singleAuthenticator;
+    }
+
+    /**
+     * @return the authenticator of the factor the user has used the most, if they have used it often enough to no
+     * longer be asked and it is still one of their factors, or null if the user should choose.
+     */
+    @Nullable
+    private AuthenticatorDescriptor getAutoSelectedAuthenticator(String subject, Map<String, String> secondFactors)
+    {
+        if (_autoSelectFactorAfterUses <= 0 || _factorUsageStore.getMostUsedCount(subject) < _autoSelectFactorAfterUses)
+        {
+            return null;
+        }
+
+        @Nullable String acr = _factorUsageStore.getMostUsedAcr(subject);
+
+        return acr != null && secondFactors.containsValue(acr) ? resolve(acr) : null;
+    }
+
+    @Nullable
+    private AuthenticatorDescriptor resolve(String acr)
+    {
+        long resolutionStartTime = _metrics.startTimer();
+        @Nullable AuthenticatorDescriptor authenticator = _authenticatorModelRegistry.getDescriptor(acr);
+        _metrics.record(DESCRIPTOR_RESOLUTION, resolutionStartTime);
+
+        return authenticator;
+    }
+
+    /**
+     * Sends the user straight to the authenticator of a factor chosen on their behalf, storing only the chosen factor,
+     * as if the user had picked it from the list. A factor chosen because the user uses it the most is marked as such,
+     * so that a user who comes back without authenticating with it is shown the list instead.
+     */
+    private AuthenticationActionResult authenticateWithoutPrompt(AuthenticatorDescriptor authenticator,
+                                                                 OptInMFAMetrics.Outcome outcome)
+    {
+        _sessionStore.write(outcome == AUTO_SELECTED
+                ? OptInMFAState.autoSelected(authenticator.getAcr())
+                : OptInMFAState.chosen(authenticator.getAcr()));
+
+        _metrics.record(outcome);
+        return AuthenticationActionResult.pendingResult(authenticate(authenticator));
+    }
+
+    @Nullable
+    private Map<String, String> getSecondFactors(AuthenticationAttributes authenticationAttributes)
+    {
+        String subject = authenticationAttributes.getSubject();
+        @Nullable Map<String, String> prefetchedSecondFactors = getPrefetchedSecondFactors(authenticationAttributes);
+        @Nullable String version = getSecondFactorsVersion(authenticationAttributes);
+
+        if (prefetchedSecondFactors != null)
+        {
+            _secondFactorsCache.put(subject, prefetchedSecondFactors, version);
+            return prefetchedSecondFactors;
+        }
+
+        boolean refresh = authenticationAttributes.getContextAttributes().get(REFRESH_SECOND_FACTORS_ATTRIBUTE) != null;
+
+        return _secondFactorsLookup.lookUp(subject, version, refresh);
+    }
+
+    /**
+     * @return the version of the user's second factors that the first factor authenticator has put in the subject or
+     * context attributes, if any.
+     */
+    @Nullable
+    private String getSecondFactorsVersion(AuthenticationAttributes authenticationAttributes)
+    {
+        if (_secondFactorsVersionAttribute == null)
+        {
+            return null;
+        }
+
+        @Nullable Attribute attribute = authenticationAttributes.getSubjectAttributes()
+                .get(_secondFactorsVersionAttribute);
+
+        if (attribute == null)
+        {
+            attribute = authenticationAttributes.getContextAttributes().get(_secondFactorsVersionAttribute);
+        }
+
+        return attribute == null || attribute.getValue() == null ? null : attribute.getValue().toString();
+    }
+
+    /**
+     * @return the factors the first factor authenticator or an earlier action has put in the subject or context
+     * attributes, if any.
+     */
+    @Nullable
+    private Map<String, String> getPrefetchedSecondFactors(AuthenticationAttributes authenticationAttributes)
+    {
+        if (_prefetchedSecondFactorsAttribute == null)
+        {
+            return null;
+        }
+
+        @Nullable Attribute attribute = authenticationAttributes.getSubjectAttributes()
+                .get(_prefetchedSecondFactorsAttribute);
+
+        if (attribute == null)
+        {
+            attribute = authenticationAttributes.getContextAttributes().get(_prefetchedSecondFactorsAttribute);
+        }
+
+        if (attribute == null)
+        {
+            return null;
+        }
+
+        Map<String, String> secondFactors = OptInMFAState.toSecondFactors(attribute.getValue());
+
+        return secondFactors.isEmpty() ? null : secondFactors;
+    }
 }
@@ -16,6 +16,8 @@
 package io.curity.identityserver.plugin.OptInMFA;
 
 import se.curity.identityserver.sdk.config.Configuration;
+import se.curity.identityserver.sdk.config.annotation.DefaultBoolean;
+import se.curity.identityserver.sdk.config.annotation.DefaultEnum;
 import se.curity.identityserver.sdk.config.annotation.DefaultInteger;
 import se.curity.identityserver.sdk.config.annotation.Description;
 import se.curity.identityserver.sdk.service.AccountManager;
@@ -23,6 +25,9 @@ import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authentication.AuthenticatorInformationProvider;
 import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
 
+import java.util.List;
+import java.util.Optional;
+
 public interface OptInMFAAuthenticationActionConfig extends Configuration
 {
 
@@ -30,6 +35,238 @@ public interface OptInMFAAuthenticationActionConfig extends Configuration
     @DefaultInteger(30)
     int getRememberMyChoiceDaysLimit();
 
+    @Description("Keys which sign the `remember my choice` cookie, each of the form `<key-id>:<secret>`. The first key signs new cookies, and cookies signed by any of the keys are accepted, so that keys can be rotated. If none are given, a random key is used, which is only known by this node and changes when it restarts.")
+    List<String> getRememberChoiceCookieSigningKeys();
+
+    @Description("ACRs of the authenticators to resolve on the first login after the configuration is loaded, so that the logins after it do not each resolve their own. List the most common second factors.")
+    List<String> getWarmUpAcrs();
+
+    @Description("The longest resolving the authenticators to warm up may hold up the first login, in milliseconds.")
+    @DefaultInteger(2000)
+    int getWarmUpBudgetMillis();
+
+    @Description("Where the second factors of users are read from: the secondFactors attribute of their account, or a local index file.")
+    @DefaultEnum("ACCOUNT_ATTRIBUTE")
+    SecondFactorSourceType getSecondFactorSource();
+
+    enum SecondFactorSourceType
+    {
+        /**
+         * The secondFactors attribute of the account, looked up with the account manager.
+         */
+        ACCOUNT_ATTRIBUTE,
+
+        /**
+         * A local, read-only index file, see {@link IndexFileSecondFactorSource}.
+         */
+        INDEX_FILE
+    }
+
+    @Description("Path of the index file to read second factors from, on every node. Each line holds a subject followed by the name and ACR of each of the user's factors, separated by tabs, and the lines are sorted as LC_ALL=C sort does. Replace the file by renaming a new one over it.")
+    Optional<String> getSecondFactorIndexFile();
+
+    @Description("How often the index file of second factors is checked for changes, in seconds.")
+    @DefaultInteger(30)
+    int getSecondFactorIndexFileCheckIntervalSeconds();
+
+    @Description("Name of a subject or context attribute in which the first factor authenticator, or an earlier action, has already put the second factors of the user, as a map of names to ACRs. When the attribute is present, the account is not looked up.")
+    Optional<String> getPrefetchedSecondFactorsAttribute();
+
+    @Description("Cache the second factors of users between logins, so that an account lookup is not needed on every login.")
+    @DefaultBoolean(false)
+    boolean isSecondFactorsCacheEnabled();
+
+    @Description("The maximum number of users whose second factors are kept in the cache.")
+    @DefaultInteger(10000)
+    int getSecondFactorsCacheMaxEntries();
+
+    @Description("For how long the cached second factors of a user are used before they are looked up again, in seconds.")
+    @DefaultInteger(60)
+    int getSecondFactorsCacheTtlSeconds();
+
+    @Description("Name of a subject or context attribute in which the first factor authenticator puts the version of the user's second factors, such as a counter or timestamp on the account that is changed whenever the factors are. Cached factors of another version are looked up again, so that changes made on one node are seen by all nodes at the user's next login.")
+    Optional<String> getSecondFactorsVersionAttribute();
+
+    @Description("For how long an ACR found on a user's profile, but not configured in the system, is remembered as such before it is looked up again, in seconds.")
+    @DefaultInteger(60)
+    int getUnconfiguredAuthenticatorRetrySeconds();
+
+    @Description("For how long a resolved authenticator, and any page of factors showing it, is remembered before it is resolved again, in seconds. An authenticator which is renamed or removed is no longer offered after at most this long.")
+    @DefaultInteger(300)
+    int getAuthenticatorTtlSeconds();
+
+    @Description("The number of distinct sets of factors for which the page to choose among them is prepared once and reused. 0 prepares the page for every user.")
+    @DefaultInteger(1000)
+    int getFactorPageCacheMaxEntries();
+
+    @Description("How the factors a user is prompted with are kept in the session: as the factors themselves, or as a short digest, in which case they are looked up again, preferably from the cache, when the user is shown them and when they choose one. Without the second factors cache, DIGEST costs an extra account lookup on every showing of the factors and every choice of a factor. Use DIGEST only once all nodes support it, and with the second factors cache enabled if the factors are put in the attributes instead of being read from the account.")
+    @DefaultEnum("FACTORS")
+    SecondFactorsEncoding getSessionSecondFactorsEncoding();
+
+    enum SecondFactorsEncoding
+    {
+        /**
+         * The names and ACRs of the factors.
+         */
+        FACTORS,
+
+        /**
+         * A digest of the factors, which are looked up again and checked against it.
+         */
+        DIGEST
+    }
+
+    @Description("Authenticate a user who has only one factor that can be used with it directly, without showing the list of factors.")
+    @DefaultBoolean(false)
+    boolean isPromptSkippedForSingleFactor();
+
+    @Description("Which factors the user has already authenticated with in the SSO session let them skip the prompt: any of their registered factors, or also any factor ranked at least as strong as the weakest of their ranked factors.")
+    @DefaultEnum("ANY_REGISTERED")
+    StepUpPolicy getStepUpPolicy();
+
+    @Description("ACRs of the factors, from the strongest to the weakest, for the MINIMUM_STRENGTH step-up policy. Only ACRs among the second factor ACRs may be ranked.")
+    List<String> getFactorStrengthRanking();
+
+    @Description("ACRs of the authenticators which are second factors, for the MINIMUM_STRENGTH step-up policy. A session of one of them may stand in for a weaker factor of the user, so never list an authenticator used as a first factor.")
+    List<String> getSecondFactorAcrs();
+
+    enum StepUpPolicy
+    {
+        /**
+         * A session of any factor registered by the user.
+         */
+        ANY_REGISTERED,
+
+        /**
+         * A session of any factor registered by the user, or of a factor ranked at least as strong as the weakest of
+         * the ranked factors registered by the user.
+         */
+        MINIMUM_STRENGTH
+    }
+
+    @Description("The order in which the factors of a user are shown: by name, or with the factor the user has used the most first.")
+    @DefaultEnum("NAME")
+    FactorOrdering getFactorOrdering();
+
+    @Description("Once a user has completed this many logins with the factor they use the most, that factor is chosen without showing the user the list. A user who cannot use that factor, e.g. after losing their phone, gets the list by starting the login again without completing it, after which the factor is no longer chosen for them until they have used one this many times again. 0 always shows the list.")
+    @DefaultInteger(0)
+    int getAutoSelectFactorAfterUses();
+
+    @Description("The maximum number of users whose use of factors is counted, when factors are ordered by use or chosen automatically.")
+    @DefaultInteger(100000)
+    int getFactorUsageMaxUsers();
+
+    @Description("For how long the use of factors by a user who does not log in is remembered, in days.")
+    @DefaultInteger(90)
+    int getFactorUsageRetentionDays();
+
+    enum FactorOrdering
+    {
+        /**
+         * By the name the user has given the factor.
+         */
+        NAME,
+
+        /**
+         * The factor the user has used the most first, and the others by name.
+         */
+        MOST_USED_FIRST
+    }
+
+    @Description("Guard the account lookup, so that a slow or failing account store is not asked again until it has recovered, and the fallback applies meanwhile. The lookup still runs on the request thread.")
+    @DefaultBoolean(false)
+    boolean isAccountLookupGuardEnabled();
+
+    @Description("How long an account lookup may take before it counts as failed, in milliseconds. A slower lookup is still used.")
+    @DefaultInteger(500)
+    int getAccountLookupTimeoutMillis();
+
+    @Description("The maximum number of account lookups which may run at once. Further lookups are not attempted, and the fallback applies.")
+    @DefaultInteger(64)
+    int getAccountLookupMaxPending();
+
+    @Description("The number of consecutive slow or failed account lookups after which lookups are not attempted for a while, and the fallback applies. 0 always attempts the lookup.")
+    @DefaultInteger(5)
+    int getAccountLookupCircuitBreakerFailureThreshold();
+
+    @Description("For how long account lookups are not attempted after they have failed repeatedly, in seconds. A single lookup is then tried, and lookups resume if it succeeds.")
+    @DefaultInteger(30)
+    int getAccountLookupCircuitBreakerOpenSeconds();
+
+    @Description("What to do when the account lookup fails or is not attempted.")
+    @DefaultEnum("FAIL_CLOSED")
+    AccountLookupFallback getAccountLookupFallback();
+
+    @Description("For how long the factors of a user are remembered as the last known factors, in seconds.")
+    @DefaultInteger(86400)
+    int getAccountLookupLastKnownMaxAgeSeconds();
+
+    enum AccountLookupFallback
+    {
+        /**
+         * The login fails.
+         */
+        FAIL_CLOSED,
+
+        /**
+         * The factors found by the last successful lookup of the user are used, if the user has been looked up
+         * recently; otherwise the login fails.
+         */
+        LAST_KNOWN_FACTORS
+    }
+
+    @Description("Limit the rate at which the action and its pages may be used, before the session or account store is touched. The action is limited per user and per authentication transaction, and the pages per client address.")
+    @DefaultBoolean(false)
+    boolean isRateLimitingEnabled();
+
+    @Description("The sustained number of times per minute the action may run for the same user.")
+    @DefaultInteger(30)
+    int getSubjectRateLimitPerMinute();
+
+    @Description("The number of times the action may run at once for a user who has not used it for a while.")
+    @DefaultInteger(10)
+    int getSubjectRateLimitBurst();
+
+    @Description("The sustained number of times per minute the action may run in the same authentication transaction.")
+    @DefaultInteger(20)
+    int getTransactionRateLimitPerMinute();
+
+    @Description("The number of times the action may run at once in a new authentication transaction.")
+    @DefaultInteger(10)
+    int getTransactionRateLimitBurst();
+
+    @Description("The sustained number of requests per minute a client address may make to the pages of the action.")
+    @DefaultInteger(120)
+    int getClientRateLimitPerMinute();
+
+    @Description("The number of requests a client address which has been idle may make to the pages of the action at once.")
+    @DefaultInteger(30)
+    int getClientRateLimitBurst();
+
+    @Description("The number of users, transactions and client addresses to track for each rate limit. Idle ones are dropped every few seconds. While that many are tracked, the least limited ones are dropped to make room for new ones.")
+    @DefaultInteger(100000)
+    int getRateLimitMaxTrackedKeys();
+
+    @Description("Collect counters of the outcomes of the action and the latencies of the operations it performs.")
+    @DefaultBoolean(false)
+    boolean isMetricsEnabled();
+
+    @Description("How often the collected metrics are logged in the Prometheus text format, in seconds. 0 disables logging of the metrics.")
+    @DefaultInteger(0)
+    int getMetricsLogIntervalSeconds();
+
+    @Description("The percentage of authentication transactions for which a trace of what the action did, and how long its account lookups, descriptor resolutions and session operations took, is logged on the io.curity.identityserver.plugin.OptInMFA.LoginTrace logger. 0 disables tracing.")
+    @DefaultInteger(0)
+    int getTraceSamplingPercentage();
+
+    @Description("The number of traces waiting to be logged that are kept. Traces beyond that are dropped, so that logging never holds up a login.")
+    @DefaultInteger(1024)
+    int getTraceBufferSize();
+
+    @Description("Read the session attributes written by versions of this plugin from before the single state attribute, so that logins in progress survive a rolling upgrade from them. Turn on for the upgrade, and off again once all nodes are upgraded, since it costs a session read whenever a login starts.")
+    @DefaultBoolean(false)
+    boolean isLegacySessionStateSupported();
+
     AccountManager getAccountManager();
 
     AuthenticatorDescriptorFactory getAuthenticatorDescriptorFactory();
@@ -15,9 +15,10 @@
  */
 package io.curity.identityserver.plugin.OptInMFA;
 
-import se.curity.identityserver.sdk.attribute.Attribute;
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionRequestHandler;
+import se.curity.identityserver.sdk.Nullable;
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionResult;
+import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.web.Request;
@@ -27,21 +28,37 @@ import se.curity.identityserver.sdk.web.cookie.StandardResponseCookie;
 import java.time.Duration;
 import java.util.Optional;
 
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE;
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE;
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.REMEMBER_CHOICE_COOKIE_NAME;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.CHOOSE_FACTOR;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.FACTOR_CHOSEN;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.INVALID_ACR;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.INVALID_SESSION;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.RATE_LIMITED;
 
 public final class OptInMFAChooseFactorHandler implements ActionCompletionRequestHandler<ChooseFactorPostRequestModel>
 {
-    private final SessionManager _sessionManager;
+    private final OptInMFASessionStore _sessionStore;
+    private final SecondFactorsLookup _secondFactorsLookup;
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
     private final ExceptionFactory _exceptionFactory;
     private final int _rememberChoiceDays;
+    private final OptInMFAMetrics _metrics;
+    private final RememberChoiceCookieCodec _rememberChoiceCookieCodec;
+    @Nullable
+    private final RequestRateLimits _requestRateLimits;
 
-    public OptInMFAChooseFactorHandler(SessionManager sessionManager, ExceptionFactory exceptionFactory, OptInMFAAuthenticationActionConfig configuration)
+    public OptInMFAChooseFactorHandler(SessionManager sessionManager, ExceptionFactory exceptionFactory,
+                                       OptInMFAAuthenticationActionConfig configuration,
+                                       OptInMFAManagedObject managedObject)
     {
-        _sessionManager = sessionManager;
         _exceptionFactory = exceptionFactory;
         _rememberChoiceDays = configuration.getRememberMyChoiceDaysLimit();
+        _metrics = managedObject.getMetrics();
+        _rememberChoiceCookieCodec = managedObject.getRememberChoiceCookieCodec();
+        _requestRateLimits = managedObject.getRequestRateLimits();
+        _sessionStore = new OptInMFASessionStore(sessionManager, configuration, _metrics);
+        _secondFactorsLookup = new SecondFactorsLookup(managedObject);
+        _authenticatorModelRegistry = managedObject.getAuthenticatorModelRegistry();
     }
 
     @Override
@@ -53,21 +70,72 @@ public final class OptInMFAChooseFactorHandler implements ActionCompletionReques
     @Override
     public Optional<ActionCompletionResult> post(ChooseFactorPostRequestModel request, Response response)
     {
-        _sessionManager.put(Attribute.of(CHOSEN_SECOND_FACTOR_ATTRIBUTE, request.getSecondFactor()));
-        _sessionManager.put(Attribute.ofFlag(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE));
+        long startTime = _metrics.startTimer();
 
-        String rememberChoice = request.getRememberChoice();
+        try
+        {
+            return chooseFactor(request, response);
+        }
+        finally
+        {
+            _metrics.record(CHOOSE_FACTOR, startTime);
+        }
+    }
+
+    private Optional<ActionCompletionResult> chooseFactor(ChooseFactorPostRequestModel request, Response response)
+    {
+        if (!request.isValid())
+        {
+            _metrics.record(INVALID_ACR);
+            throw MissingSecondFactorParameterException.INSTANCE;
+        }
+
+        String secondFactor = request.getSecondFactor();
+
+        @Nullable OptInMFAState state = _sessionStore.read(OptInMFAState.Phase.PROMPTING);
+
+        if (state == null || state.getPhase() != OptInMFAState.Phase.PROMPTING)
+        {
+            _metrics.record(INVALID_SESSION);
+            throw SecondFactorsInvalidException.INSTANCE;
+        }
 
-        if (rememberChoice != null)
+        // Only a forged request chooses a factor the user was not offered, or one the page left out
+        if (!_secondFactorsLookup.isOffered(state, secondFactor)
+                || _authenticatorModelRegistry.isKnownToBeUnconfigured(secondFactor))
         {
-            StandardResponseCookie cookie = new StandardResponseCookie(REMEMBER_CHOICE_COOKIE_NAME, request.getSecondFactor());
-            cookie.setMaxAge(Duration.ofDays(_rememberChoiceDays));
-            response.cookies().add(cookie);
+            _metrics.record(INVALID_ACR);
+            throw SecondFactorsInvalidException.INSTANCE;
         }
 
+        if (request.getRememberChoice() != null)
+        {
+            rememberChoice(state.getSubject(), secondFactor, response);
+        }
+
+        _sessionStore.write(OptInMFAState.chosen(secondFactor));
+
+        _metrics.record(FACTOR_CHOSEN);
         return Optional.of(ActionCompletionResult.complete());
     }
 
+    private void rememberChoice(@Nullable String subject, String secondFactor, Response response)
+    {
+        if (subject == null)
+        {
+            // The choice cannot be bound to a user, e.g. because the prompt was started by an earlier version
+            return;
+        }
+
+        Duration maxAge = Duration.ofDays(_rememberChoiceDays);
+        long expiresAt = System.currentTimeMillis() / 1000 + maxAge.getSeconds();
+
+        StandardResponseCookie cookie = new StandardResponseCookie(REMEMBER_CHOICE_COOKIE_NAME,
+                _rememberChoiceCookieCodec.encode(subject, secondFactor, expiresAt));
+        cookie.setMaxAge(maxAge);
+        response.cookies().add(cookie);
+    }
+
     @Override
     public ChooseFactorPostRequestModel preProcess(Request request, Response response)
     {
@@ -76,6 +144,13 @@ public final class OptInMFAChooseFactorHandler implements ActionCompletionReques
             throw _exceptionFactory.methodNotAllowed();
         }
 
+        if (_requestRateLimits != null && !_requestRateLimits.tryAcquireForHandler(request.getClientIpAddress()))
+        {
+            _metrics.record(RATE_LIMITED);
+            throw _exceptionFactory.forbiddenException(ErrorCode.ACCESS_DENIED,
+                    RequestRateLimits.TOO_MANY_REQUESTS_MESSAGE);
+        }
+
         return new ChooseFactorPostRequestModel(request);
     }
 }
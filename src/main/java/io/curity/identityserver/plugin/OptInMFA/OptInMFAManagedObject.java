@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.plugin.ManagedObject;
+
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the state which outlives a single request, such as caches. The server creates one instance per configured
+ * action and replaces it whenever the configuration changes, so nothing kept here survives a configuration reload.
+ */
+public final class OptInMFAManagedObject extends ManagedObject<OptInMFAAuthenticationActionConfig>
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+    private static final Logger _metricsLogger = LoggerFactory.getLogger(OptInMFAMetrics.class);
+
+    private final SecondFactorsCache _secondFactorsCache;
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
+    private final AuthenticatorBatchResolver _authenticatorBatchResolver;
+    private final OptInMFAMetrics _metrics;
+    private final RememberChoiceCookieCodec _rememberChoiceCookieCodec;
+    @Nullable
+    private final AccountLookupGuard _accountLookupGuard;
+    @Nullable
+    private final RequestRateLimits _requestRateLimits;
+    private final FactorUsageStore _factorUsageStore;
+    private final AuthenticatedSessionPolicy _authenticatedSessionPolicy;
+    private final StartupWarmUp _startupWarmUp;
+    private final SecondFactorSource _secondFactorSource;
+    @Nullable
+    private final LoginTracer _loginTracer;
+    @Nullable
+    private final ScheduledExecutorService _metricsLogScheduler;
+
+    public OptInMFAManagedObject(OptInMFAAuthenticationActionConfig configuration)
+    {
+        super(configuration);
+
+        _secondFactorsCache = SecondFactorsCache.create(configuration);
+
+        if (configuration.getSessionSecondFactorsEncoding() == OptInMFAAuthenticationActionConfig.SecondFactorsEncoding.DIGEST
+                && !_secondFactorsCache.isEnabled())
+        {
+            _logger.warn("Second factors are kept in the session as a digest without the second factors cache, so " +
+                    "they are looked up again every time they are shown and every time one is chosen");
+        }
+
+        _authenticatorModelRegistry = new AuthenticatorModelRegistry(configuration.getAuthenticatorDescriptorFactory(),
+                configuration.getAuthenticatorTtlSeconds(), configuration.getUnconfiguredAuthenticatorRetrySeconds());
+        _authenticatorBatchResolver = new AuthenticatorBatchResolver(_authenticatorModelRegistry,
+                configuration.getFactorPageCacheMaxEntries(), configuration.getAuthenticatorTtlSeconds());
+        _metrics = OptInMFAMetrics.create(configuration);
+        _rememberChoiceCookieCodec = RememberChoiceCookieCodec.create(configuration);
+        _factorUsageStore = FactorUsageStore.create(configuration);
+        _authenticatedSessionPolicy = AuthenticatedSessionPolicy.create(configuration);
+
+        // The warm-up, and anything which may reject the configuration, come before the first thread is started, so
+        // that no thread is left running if they fail
+        _startupWarmUp = StartupWarmUp.create(configuration, _authenticatorModelRegistry, _rememberChoiceCookieCodec);
+        _secondFactorSource = createSecondFactorSource(configuration);
+        _accountLookupGuard = AccountLookupGuard.create(configuration);
+        _requestRateLimits = RequestRateLimits.create(configuration);
+        _loginTracer = LoginTracer.create(configuration);
+
+        _metrics.registerCounter("second_factors_cache_hits_total", "Lookups of second factors answered by the cache.",
+                _secondFactorsCache::getHitCount);
+        _metrics.registerCounter("second_factors_cache_misses_total", "Lookups of second factors not answered by the cache.",
+                _secondFactorsCache::getMissCount);
+        _metrics.registerCounter("second_factors_cache_evictions_total", "Entries evicted from the second factors cache.",
+                _secondFactorsCache::getEvictionCount);
+        _metrics.registerCounter("second_factors_cache_stale_total", "Cached second factors looked up again since the user's factors have a newer version.",
+                _secondFactorsCache::getStaleCount);
+        _metrics.registerGauge("second_factors_cache_size", "Number of users in the second factors cache.",
+                _secondFactorsCache::size);
+        _metrics.registerCounter("factor_page_cache_hits_total", "Pages of factors reused from the cache.",
+                _authenticatorBatchResolver::getCacheHitCount);
+        _metrics.registerCounter("factor_page_cache_misses_total", "Pages of factors prepared because none was cached.",
+                _authenticatorBatchResolver::getCacheMissCount);
+        _metrics.registerGauge("factor_page_cache_size", "Number of sets of factors whose page is cached.",
+                _authenticatorBatchResolver::getCacheSize);
+        _metrics.registerGauge("factor_usage_users", "Number of users whose use of factors is counted.",
+                _factorUsageStore::size);
+
+        if (_accountLookupGuard != null)
+        {
+            _metrics.registerGauge("account_lookup_pending", "Number of account lookups running.",
+                    _accountLookupGuard::getPendingCount);
+            _metrics.registerCounter("account_lookup_timeouts_total", "Account lookups which took longer than the timeout.",
+                    _accountLookupGuard::getTimeoutCount);
+            _metrics.registerCounter("account_lookup_failures_total", "Account lookups which failed with an error.",
+                    _accountLookupGuard::getFailureCount);
+            _metrics.registerCounter("account_lookup_rejections_total", "Account lookups not attempted because too many were pending.",
+                    _accountLookupGuard::getRejectionCount);
+            _metrics.registerCounter("account_lookup_short_circuits_total", "Account lookups not attempted because lookups were failing.",
+                    _accountLookupGuard::getShortCircuitCount);
+            _metrics.registerCounter("account_lookup_fallbacks_total", "Logins which used the last known factors of the user.",
+                    _accountLookupGuard::getFallbackCount);
+        }
+
+        if (_secondFactorSource instanceof IndexFileSecondFactorSource)
+        {
+            _metrics.registerGauge("index_file_users", "Number of users in the index file of second factors.",
+                    ((IndexFileSecondFactorSource) _secondFactorSource)::size);
+        }
+
+        if (_requestRateLimits != null)
+        {
+            _metrics.registerCounter("rate_limit_rejections_total", "Requests rejected because a rate limit was exceeded.",
+                    _requestRateLimits::getRejectionCount);
+            _metrics.registerCounter("rate_limit_evictions_total", "Tracked keys dropped to make room for new ones.",
+                    _requestRateLimits::getEvictionCount);
+            _metrics.registerGauge("rate_limit_tracked_keys", "Number of users, transactions and clients tracked by the rate limits.",
+                    _requestRateLimits::size);
+        }
+
+        if (_loginTracer != null)
+        {
+            _metrics.registerCounter("trace_records_dropped_total", "Traces of logins dropped because too many were waiting to be logged.",
+                    _loginTracer::getDroppedCount);
+        }
+
+        int metricsLogIntervalSeconds = configuration.getMetricsLogIntervalSeconds();
+
+        if (_metrics.isEnabled() && metricsLogIntervalSeconds > 0)
+        {
+            _metricsLogScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "optinmfa-metrics-" + configuration.id());
+                thread.setDaemon(true);
+                return thread;
+            });
+            _metricsLogScheduler.scheduleAtFixedRate(() -> _metricsLogger.info("\n{}", _metrics.toPrometheusText()),
+                    metricsLogIntervalSeconds, metricsLogIntervalSeconds, TimeUnit.SECONDS);
+        }
+        else
+        {
+            _metricsLogScheduler = null;
+        }
+    }
+
+    private static SecondFactorSource createSecondFactorSource(OptInMFAAuthenticationActionConfig configuration)
+    {
+        switch (configuration.getSecondFactorSource())
+        {
+            case INDEX_FILE:
+                return IndexFileSecondFactorSource.create(configuration);
+            case ACCOUNT_ATTRIBUTE:
+            default:
+                return new AccountAttributeSecondFactorSource(configuration.getAccountManager());
+        }
+    }
+
+    public SecondFactorsCache getSecondFactorsCache()
+    {
+        return _secondFactorsCache;
+    }
+
+    public AuthenticatorModelRegistry getAuthenticatorModelRegistry()
+    {
+        return _authenticatorModelRegistry;
+    }
+
+    public AuthenticatorBatchResolver getAuthenticatorBatchResolver()
+    {
+        return _authenticatorBatchResolver;
+    }
+
+    /**
+     * @return the guard of account lookups, or null if account lookups are not guarded.
+     */
+    @Nullable
+    public AccountLookupGuard getAccountLookupGuard()
+    {
+        return _accountLookupGuard;
+    }
+
+    /**
+     * @return the rate limits, or null if rate limiting is disabled.
+     */
+    @Nullable
+    public RequestRateLimits getRequestRateLimits()
+    {
+        return _requestRateLimits;
+    }
+
+    public SecondFactorSource getSecondFactorSource()
+    {
+        return _secondFactorSource;
+    }
+
+    public FactorUsageStore getFactorUsageStore()
+    {
+        return _factorUsageStore;
+    }
+
+    /**
+     * @return the tracer of logins, or null if tracing is disabled.
+     */
+    @Nullable
+    public LoginTracer getLoginTracer()
+    {
+        return _loginTracer;
+    }
+
+    public AuthenticatedSessionPolicy getAuthenticatedSessionPolicy()
+    {
+        return _authenticatedSessionPolicy;
+    }
+
+    StartupWarmUp getStartupWarmUp()
+    {
+        return _startupWarmUp;
+    }
+
+    public OptInMFAMetrics getMetrics()
+    {
+        return _metrics;
+    }
+
+    public RememberChoiceCookieCodec getRememberChoiceCookieCodec()
+    {
+        return _rememberChoiceCookieCodec;
+    }
+
+    @Override
+    public void close()
+    {
+        if (_metricsLogScheduler != null)
+        {
+            _metricsLogScheduler.shutdownNow();
+        }
+
+        if (_accountLookupGuard != null)
+        {
+            _accountLookupGuard.invalidateAll();
+        }
+
+        if (_requestRateLimits != null)
+        {
+            _requestRateLimits.close();
+        }
+
+        _secondFactorSource.close();
+
+        if (_loginTracer != null)
+        {
+            _loginTracer.close();
+        }
+
+        _secondFactorsCache.invalidateAll();
+        _authenticatorModelRegistry.invalidateAll();
+        _authenticatorBatchResolver.invalidateAll();
+        _factorUsageStore.invalidateAll();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters of the outcomes of the action and latency histograms of the operations it performs, exported in the
+ * Prometheus text format.
+ * <p>
+ * When metrics are disabled, {@link #startTimer()} does not read the clock and nothing is recorded, so the
+ * instrumentation costs no more than a branch on a final field.
+ * <p>
+ * When tracing is enabled, outcomes and operations are also added to the {@link LoginTrace} of the call being traced
+ * on the current thread, if any.
+ */
+public final class OptInMFAMetrics
+{
+    private static final String PREFIX = "optinmfa_";
+
+    public enum Outcome
+    {
+        SUCCESS_ALREADY_AUTHENTICATED("success-already-authenticated"),
+        SUCCESS_CHOSEN_FACTOR("success-chosen-factor"),
+        PROMPT("prompt"),
+        AUTHENTICATE("authenticate"),
+        REMEMBERED_CHOICE("remembered-choice"),
+        AUTO_SELECTED("auto-selected"),
+        SINGLE_FACTOR("single-factor"),
+        SHOW_FACTORS("show-factors"),
+        FACTOR_CHOSEN("factor-chosen"),
+        FAILED_NO_FACTORS("failed-no-factors"),
+        FAILED_ACCOUNT_LOOKUP("failed-account-lookup"),
+        INVALID_ACR("invalid-acr"),
+        INVALID_SESSION("invalid-session"),
+        RATE_LIMITED("rate-limited");
+
+        private final String _label;
+
+        Outcome(String label)
+        {
+            _label = label;
+        }
+
+        public String getLabel()
+        {
+            return _label;
+        }
+    }
+
+    public enum Operation
+    {
+        APPLY("apply"),
+        INDEX("index"),
+        CHOOSE_FACTOR("choose-factor"),
+        ACCOUNT_LOOKUP("account-lookup"),
+        DESCRIPTOR_RESOLUTION("descriptor-resolution"),
+        SESSION_READ("session-read"),
+        SESSION_WRITE("session-write");
+
+        private final String _label;
+
+        Operation(String label)
+        {
+            _label = label;
+        }
+
+        public String getLabel()
+        {
+            return _label;
+        }
+    }
+
+    private final boolean _enabled;
+    private final boolean _tracing;
+    private final Map<Outcome, LongAdder> _outcomes = new EnumMap<>(Outcome.class);
+    private final Map<Operation, LatencyHistogram> _latencies = new EnumMap<>(Operation.class);
+    private final Map<String, Counter> _counters = new LinkedHashMap<>();
+
+    private OptInMFAMetrics(boolean enabled, boolean tracing)
+    {
+        _enabled = enabled;
+        _tracing = tracing;
+
+        for (Outcome outcome : Outcome.values())
+        {
+            _outcomes.put(outcome, new LongAdder());
+        }
+
+        for (Operation operation : Operation.values())
+        {
+            _latencies.put(operation, new LatencyHistogram());
+        }
+    }
+
+    public static OptInMFAMetrics create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        return new OptInMFAMetrics(configuration.isMetricsEnabled(), LoginTracer.isEnabled(configuration));
+    }
+
+    public static OptInMFAMetrics disabled()
+    {
+        return new OptInMFAMetrics(false, false);
+    }
+
+    public boolean isEnabled()
+    {
+        return _enabled;
+    }
+
+    /**
+     * @return the start time to pass to {@link #record(Operation, long)}.
+     */
+    public long startTimer()
+    {
+        return _enabled || _tracing && LoginTrace.current() != null ? System.nanoTime() : 0;
+    }
+
+    public void record(Operation operation, long startTime)
+    {
+        if (_enabled || _tracing)
+        {
+            long duration = System.nanoTime() - startTime;
+
+            if (_enabled)
+            {
+                _latencies.get(operation).record(duration);
+            }
+
+            addToTrace(operation, duration);
+        }
+    }
+
+    /**
+     * Adds an operation to the trace of the current call only, for an operation whose latency is recorded on another
+     * thread, such as an account lookup waited for on the request thread.
+     */
+    public void recordInTrace(Operation operation, long startTime)
+    {
+        if (_tracing)
+        {
+            addToTrace(operation, System.nanoTime() - startTime);
+        }
+    }
+
+    public void record(Outcome outcome)
+    {
+        if (_enabled)
+        {
+            _outcomes.get(outcome).increment();
+        }
+
+        if (_tracing)
+        {
+            @Nullable LoginTrace trace = LoginTrace.current();
+
+            if (trace != null)
+            {
+                trace.record(outcome);
+            }
+        }
+    }
+
+    private void addToTrace(Operation operation, long duration)
+    {
+        if (_tracing)
+        {
+            @Nullable LoginTrace trace = LoginTrace.current();
+
+            if (trace != null)
+            {
+                trace.record(operation, duration);
+            }
+        }
+    }
+
+    /**
+     * Adds a counter maintained elsewhere, such as the hit count of a cache, to the exported metrics. Should be
+     * called while setting up the plugin, before metrics are exported.
+     */
+    public synchronized void registerCounter(String name, String help, LongSupplier value)
+    {
+        _counters.put(PREFIX + name, new Counter("counter", help, value));
+    }
+
+    /**
+     * Like {@link #registerCounter(String, String, LongSupplier)}, for a value which may go down, such as the size
+     * of a cache.
+     */
+    public synchronized void registerGauge(String name, String help, LongSupplier value)
+    {
+        _counters.put(PREFIX + name, new Counter("gauge", help, value));
+    }
+
+    public long getOutcomeCount(Outcome outcome)
+    {
+        return _outcomes.get(outcome).sum();
+    }
+
+    public long getOperationCount(Operation operation)
+    {
+        return _latencies.get(operation).getCount();
+    }
+
+    public String toPrometheusText()
+    {
+        StringBuilder text = new StringBuilder(4096);
+        writePrometheusText(text);
+
+        return text.toString();
+    }
+
+    public void writePrometheusText(Appendable out)
+    {
+        try
+        {
+            String outcomes = PREFIX + "outcomes_total";
+            out.append("# HELP ").append(outcomes).append(" Number of times each outcome of the opt-in MFA flow was reached.\n");
+            out.append("# TYPE ").append(outcomes).append(" counter\n");
+
+            for (Map.Entry<Outcome, LongAdder> outcome : _outcomes.entrySet())
+            {
+                out.append(outcomes).append("{outcome=\"").append(outcome.getKey().getLabel()).append("\"} ")
+                        .append(Long.toString(outcome.getValue().sum())).append('\n');
+            }
+
+            String durations = PREFIX + "operation_duration_seconds";
+            out.append("# HELP ").append(durations).append(" Duration of the operations of the opt-in MFA flow.\n");
+            out.append("# TYPE ").append(durations).append(" histogram\n");
+
+            for (Map.Entry<Operation, LatencyHistogram> latency : _latencies.entrySet())
+            {
+                latency.getValue().writePrometheusText(out, durations, latency.getKey().getLabel());
+            }
+
+            synchronized (this)
+            {
+                for (Map.Entry<String, Counter> counter : _counters.entrySet())
+                {
+                    out.append("# HELP ").append(counter.getKey()).append(' ').append(counter.getValue()._help).append('\n');
+                    out.append("# TYPE ").append(counter.getKey()).append(' ').append(counter.getValue()._type).append('\n');
+                    out.append(counter.getKey()).append(' ')
+                            .append(Long.toString(counter.getValue()._value.getAsLong())).append('\n');
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static final class Counter
+    {
+        private final String _type;
+        private final String _help;
+        private final LongSupplier _value;
+
+        private Counter(String type, String help, LongSupplier value)
+        {
+            _type = type;
+            _help = help;
+            _value = value;
+        }
+    }
+
+    /**
+     * A histogram with fixed bucket bounds, from 50 microseconds to 5 seconds.
+     */
+    static final class LatencyHistogram
+    {
+        private static final long[] UPPER_BOUNDS_NANOS = {
+                50_000L, 100_000L, 250_000L, 500_000L,
+                1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+                100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L
+        };
+
+        private final LongAdder[] _buckets = new LongAdder[UPPER_BOUNDS_NANOS.length + 1];
+        private final LongAdder _sumNanos = new LongAdder();
+
+        LatencyHistogram()
+        {
+            for (int i = 0; i < _buckets.length; i++)
+            {
+                _buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long durationNanos)
+        {
+            int bucket = 0;
+
+            while (bucket < UPPER_BOUNDS_NANOS.length && durationNanos > UPPER_BOUNDS_NANOS[bucket])
+            {
+                bucket++;
+            }
+
+            _buckets[bucket].increment();
+            _sumNanos.add(durationNanos);
+        }
+
+        long getCount()
+        {
+            long count = 0;
+
+            for (LongAdder bucket : _buckets)
+            {
+                count += bucket.sum();
+            }
+
+            return count;
+        }
+
+        void writePrometheusText(Appendable out, String name, String operation) throws IOException
+        {
+            long cumulative = 0;
+
+            for (int i = 0; i < _buckets.length; i++)
+            {
+                cumulative += _buckets[i].sum();
+                String upperBound = i < UPPER_BOUNDS_NANOS.length ? Double.toString(UPPER_BOUNDS_NANOS[i] / 1e9) : "+Inf";
+
+                out.append(name).append("_bucket{operation=\"").append(operation).append("\",le=\"").append(upperBound)
+                        .append("\"} ").append(Long.toString(cumulative)).append('\n');
+            }
+
+            out.append(name).append("_sum{operation=\"").append(operation).append("\"} ")
+                    .append(Double.toString(_sumNanos.sum() / 1e9)).append('\n');
+            out.append(name).append("_count{operation=\"").append(operation).append("\"} ")
+                    .append(Long.toString(cumulative)).append('\n');
+        }
+    }
+}
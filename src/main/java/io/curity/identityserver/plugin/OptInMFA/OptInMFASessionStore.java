@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.attribute.AttributeValue;
+import se.curity.identityserver.sdk.attribute.MapAttributeValue;
+import se.curity.identityserver.sdk.service.SessionManager;
+
+import java.util.Collections;
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.AVAILABLE_SECOND_FACTORS_ATTRIBUTE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.SESSION_READ;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.SESSION_WRITE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAState.STATE_ATTRIBUTE;
+
+/**
+ * Reads and writes the {@link OptInMFAState} of the flow, one session operation at a time.
+ * <p>
+ * While legacy session state is supported, state written by earlier versions of the plugin, which used separate
+ * attributes, is read as well. Those versions left no marker to tell their state apart by, so it costs an extra
+ * session read whenever no state is found, including at the start of every login. The support is therefore off by
+ * default, and only meant to be turned on for a rolling upgrade from such a version.
+ */
+public final class OptInMFASessionStore
+{
+    private final SessionManager _sessionManager;
+    private final OptInMFAMetrics _metrics;
+    private final boolean _legacySessionStateSupported;
+
+    public OptInMFASessionStore(SessionManager sessionManager, OptInMFAAuthenticationActionConfig configuration,
+                                OptInMFAMetrics metrics)
+    {
+        _sessionManager = sessionManager;
+        _metrics = metrics;
+        _legacySessionStateSupported = configuration.isLegacySessionStateSupported();
+    }
+
+    /**
+     * @param legacyPhase the phase whose legacy attributes are read if there is no state, since the legacy layout
+     *                    cannot be read in one operation.
+     * @return the state, or null if there is none.
+     */
+    @Nullable
+    public OptInMFAState read(OptInMFAState.Phase legacyPhase)
+    {
+        long startTime = _metrics.startTimer();
+
+        try
+        {
+            @Nullable OptInMFAState state = OptInMFAState.fromAttribute(_sessionManager.get(STATE_ATTRIBUTE));
+
+            if (state != null || !_legacySessionStateSupported)
+            {
+                return state;
+            }
+
+            return legacyPhase == OptInMFAState.Phase.CHOSEN ? readLegacyChosenState() : readLegacyPromptingState();
+        }
+        finally
+        {
+            _metrics.record(SESSION_READ, startTime);
+        }
+    }
+
+    public void write(OptInMFAState state)
+    {
+        long startTime = _metrics.startTimer();
+        _sessionManager.put(state.toAttribute());
+        _metrics.record(SESSION_WRITE, startTime);
+    }
+
+    public void clear(OptInMFAState state)
+    {
+        long startTime = _metrics.startTimer();
+
+        if (state.isLegacy())
+        {
+            _sessionManager.remove(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE);
+            _sessionManager.remove(CHOSEN_SECOND_FACTOR_ATTRIBUTE);
+        }
+        else
+        {
+            _sessionManager.remove(STATE_ATTRIBUTE);
+        }
+
+        _metrics.record(SESSION_WRITE, startTime);
+    }
+
+    @Nullable
+    private OptInMFAState readLegacyChosenState()
+    {
+        if (_sessionManager.get(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE) == null)
+        {
+            return null;
+        }
+
+        @Nullable Attribute chosenSecondFactor = _sessionManager.get(CHOSEN_SECOND_FACTOR_ATTRIBUTE);
+
+        if (chosenSecondFactor == null)
+        {
+            return null;
+        }
+
+        return OptInMFAState.legacy(OptInMFAState.Phase.CHOSEN, chosenSecondFactor.getValueOfType(String.class),
+                Collections.emptyMap());
+    }
+
+    @Nullable
+    private OptInMFAState readLegacyPromptingState()
+    {
+        @Nullable Attribute secondFactors = _sessionManager.remove(AVAILABLE_SECOND_FACTORS_ATTRIBUTE);
+
+        if (secondFactors == null)
+        {
+            return null;
+        }
+
+        AttributeValue value = secondFactors.getAttributeValue();
+
+        if (!(value instanceof MapAttributeValue))
+        {
+            return null;
+        }
+
+        return OptInMFAState.legacy(OptInMFAState.Phase.PROMPTING, null, OptInMFAState.toSecondFactors(value));
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+import se.curity.identityserver.sdk.attribute.Attribute;
+import se.curity.identityserver.sdk.attribute.AttributeValue;
+import se.curity.identityserver.sdk.attribute.MapAttributeValue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.ATTRIBUTE_PREFIX;
+
+/**
+ * The progress of a user through the flow, kept in the session as a single attribute so that it can be read and
+ * written with one call to the session store.
+ */
+public final class OptInMFAState
+{
+    public static final String STATE_ATTRIBUTE = ATTRIBUTE_PREFIX + "state";
+
+    static final int VERSION = 1;
+
+    private static final String VERSION_KEY = "v";
+    private static final String PHASE_KEY = "p";
+    private static final String SUBJECT_KEY = "s";
+    private static final String CHOSEN_ACR_KEY = "c";
+    private static final String SECOND_FACTORS_KEY = "f";
+    private static final String SECOND_FACTORS_DIGEST_KEY = "d";
+    private static final String OFFERED_ACRS_KEY = "a";
+    private static final String AUTO_SELECTED_KEY = "x";
+
+    public enum Phase
+    {
+        /**
+         * The user is being shown the second factors to choose from.
+         */
+        PROMPTING,
+
+        /**
+         * The user has chosen a second factor, and is authenticating with it.
+         */
+        CHOSEN
+    }
+
+    private final Phase _phase;
+    @Nullable
+    private final String _subject;
+    @Nullable
+    private final String _chosenAcr;
+    private final Map<String, String> _secondFactors;
+    @Nullable
+    private final String _secondFactorsDigest;
+    @Nullable
+    private final String _offeredAcrs;
+    private final boolean _autoSelected;
+    private final boolean _legacy;
+
+    private OptInMFAState(Phase phase, @Nullable String subject, @Nullable String chosenAcr,
+                          Map<String, String> secondFactors, @Nullable String secondFactorsDigest,
+                          @Nullable String offeredAcrs, boolean autoSelected, boolean legacy)
+    {
+        _phase = phase;
+        _subject = subject;
+        _chosenAcr = chosenAcr;
+        _secondFactors = secondFactors;
+        _secondFactorsDigest = secondFactorsDigest;
+        _offeredAcrs = offeredAcrs;
+        _autoSelected = autoSelected;
+        _legacy = legacy;
+    }
+
+    /**
+     * @param subject       the user being prompted.
+     * @param secondFactors the factors the user can choose from, as a map of user-defined names to ACRs.
+     */
+    public static OptInMFAState prompting(String subject, Map<String, String> secondFactors)
+    {
+        return new OptInMFAState(Phase.PROMPTING, subject, null, secondFactors, null, null, false, false);
+    }
+
+    /**
+     * Keeps only the {@link FactorSetDigest} of the factors, which are looked up again when the user is shown them, and
+     * the {@link OfferedAcrs}, against which the choice of the user is checked.
+     *
+     * @param subject       the user being prompted.
+     * @param secondFactors the factors the user can choose from, as a map of user-defined names to ACRs.
+     */
+    public static OptInMFAState promptingWithDigest(String subject, Map<String, String> secondFactors)
+    {
+        return new OptInMFAState(Phase.PROMPTING, subject, null, Collections.emptyMap(),
+                FactorSetDigest.of(secondFactors), OfferedAcrs.encode(secondFactors.values()), false, false);
+    }
+
+    public static OptInMFAState chosen(String chosenAcr)
+    {
+        return new OptInMFAState(Phase.CHOSEN, null, chosenAcr, Collections.emptyMap(), null, null, false, false);
+    }
+
+    /**
+     * The factor the user has used the most, chosen on their behalf without showing them the list.
+     */
+    public static OptInMFAState autoSelected(String chosenAcr)
+    {
+        return new OptInMFAState(Phase.CHOSEN, null, chosenAcr, Collections.emptyMap(), null, null, true, false);
+    }
+
+    static OptInMFAState legacy(Phase phase, @Nullable String chosenAcr, Map<String, String> secondFactors)
+    {
+        return new OptInMFAState(phase, null, chosenAcr, secondFactors, null, null, false, true);
+    }
+
+    public Phase getPhase()
+    {
+        return _phase;
+    }
+
+    /**
+     * @return the user being prompted, which is only known in the {@link Phase#PROMPTING} phase, and not for state
+     * written by earlier versions of the plugin.
+     */
+    @Nullable
+    public String getSubject()
+    {
+        return _subject;
+    }
+
+    /**
+     * @return the ACR of the chosen factor, which is never null in the {@link Phase#CHOSEN} phase.
+     */
+    @Nullable
+    public String getChosenAcr()
+    {
+        return _chosenAcr;
+    }
+
+    /**
+     * @return the factors the user can choose from, which is empty if only their digest is kept.
+     */
+    public Map<String, String> getSecondFactors()
+    {
+        return _secondFactors;
+    }
+
+    /**
+     * @return the digest of the factors the user can choose from, if the factors themselves are not kept.
+     */
+    @Nullable
+    public String getSecondFactorsDigest()
+    {
+        return _secondFactorsDigest;
+    }
+
+    /**
+     * @return the {@link OfferedAcrs} the user can choose from, if only the digest of the factors is kept.
+     */
+    @Nullable
+    public String getOfferedAcrs()
+    {
+        return _offeredAcrs;
+    }
+
+    /**
+     * @return true if the factor was chosen on behalf of the user, rather than by the user.
+     */
+    public boolean isAutoSelected()
+    {
+        return _autoSelected;
+    }
+
+    /**
+     * @return true if the state was read from the separate session attributes used by earlier versions of the plugin.
+     */
+    boolean isLegacy()
+    {
+        return _legacy;
+    }
+
+    Attribute toAttribute()
+    {
+        Map<String, Object> value = new HashMap<>(4);
+        value.put(VERSION_KEY, VERSION);
+        value.put(PHASE_KEY, _phase.name());
+
+        if (_subject != null)
+        {
+            value.put(SUBJECT_KEY, _subject);
+        }
+
+        if (_chosenAcr != null)
+        {
+            value.put(CHOSEN_ACR_KEY, _chosenAcr);
+        }
+
+        if (!_secondFactors.isEmpty())
+        {
+            value.put(SECOND_FACTORS_KEY, _secondFactors);
+        }
+
+        if (_secondFactorsDigest != null)
+        {
+            value.put(SECOND_FACTORS_DIGEST_KEY, _secondFactorsDigest);
+        }
+
+        if (_offeredAcrs != null)
+        {
+            value.put(OFFERED_ACRS_KEY, _offeredAcrs);
+        }
+
+        if (_autoSelected)
+        {
+            value.put(AUTO_SELECTED_KEY, true);
+        }
+
+        return Attribute.of(STATE_ATTRIBUTE, MapAttributeValue.of(value));
+    }
+
+    /**
+     * @return the state held by the attribute, or null if there is none or it was written by an incompatible version.
+     */
+    @Nullable
+    static OptInMFAState fromAttribute(@Nullable Attribute attribute)
+    {
+        if (attribute == null)
+        {
+            return null;
+        }
+
+        AttributeValue attributeValue = attribute.getAttributeValue();
+
+        if (!(attributeValue instanceof MapAttributeValue))
+        {
+            return null;
+        }
+
+        Map<String, Object> value = ((MapAttributeValue) attributeValue).getValue();
+        @Nullable Object version = value.get(VERSION_KEY);
+
+        if (!(version instanceof Number) || ((Number) version).intValue() != VERSION)
+        {
+            return null;
+        }
+
+        @Nullable Phase phase = toPhase(value.get(PHASE_KEY));
+        @Nullable Object subject = value.get(SUBJECT_KEY);
+        @Nullable Object chosenAcr = value.get(CHOSEN_ACR_KEY);
+        @Nullable Object secondFactorsDigest = value.get(SECOND_FACTORS_DIGEST_KEY);
+        @Nullable Object offeredAcrs = value.get(OFFERED_ACRS_KEY);
+
+        if (phase == null || (phase == Phase.CHOSEN && !(chosenAcr instanceof String)))
+        {
+            return null;
+        }
+
+        return new OptInMFAState(phase, subject instanceof String ? (String) subject : null,
+                chosenAcr instanceof String ? (String) chosenAcr : null,
+                toSecondFactors(value.get(SECOND_FACTORS_KEY)),
+                secondFactorsDigest instanceof String ? (String) secondFactorsDigest : null,
+                offeredAcrs instanceof String ? (String) offeredAcrs : null,
+                Boolean.TRUE.equals(value.get(AUTO_SELECTED_KEY)), false);
+    }
+
+    static Map<String, String> toSecondFactors(@Nullable Object value)
+    {
+        Map<?, ?> map;
+
+        if (value instanceof MapAttributeValue)
+        {
+            map = ((MapAttributeValue) value).getValue();
+        }
+        else if (value instanceof Map)
+        {
+            map = (Map<?, ?>) value;
+        }
+        else
+        {
+            return Collections.emptyMap();
+        }
+
+        Map<String, String> secondFactors = new LinkedHashMap<>(map.size());
+        map.forEach((name, acr) -> secondFactors.put(String.valueOf(name), String.valueOf(acr)));
+
+        return secondFactors;
+    }
+
+    @Nullable
+    private static Phase toPhase(@Nullable Object value)
+    {
+        for (Phase phase : Phase.values())
+        {
+            if (phase.name().equals(value))
+            {
+                return phase;
+            }
+        }
+
+        return null;
+    }
+}
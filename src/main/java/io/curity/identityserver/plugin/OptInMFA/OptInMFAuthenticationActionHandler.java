@@ -15,106 +15,182 @@
  */
 package io.curity.identityserver.plugin.OptInMFA;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import se.curity.identityserver.sdk.NonEmptyList;
 import se.curity.identityserver.sdk.Nullable;
-import se.curity.identityserver.sdk.attribute.Attribute;
-import se.curity.identityserver.sdk.attribute.AttributeValue;
-import se.curity.identityserver.sdk.attribute.MapAttributeValue;
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionRequestHandler;
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionResult;
-import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException;
+import se.curity.identityserver.sdk.errors.ErrorCode;
 import se.curity.identityserver.sdk.service.ExceptionFactory;
 import se.curity.identityserver.sdk.service.SessionManager;
 import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor;
-import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory;
 import se.curity.identityserver.sdk.web.Request;
 import se.curity.identityserver.sdk.web.Response;
 import se.curity.identityserver.sdk.web.cookie.Cookie;
 
-import java.lang.invoke.MethodHandles;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Optional;
 
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.AVAILABLE_SECOND_FACTORS_ATTRIBUTE;
-import static io.curity.identityserver.plugin.OptInMFA.AuthenticatorModel.of;
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE;
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE;
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.REMEMBER_CHOICE_COOKIE_NAME;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.DESCRIPTOR_RESOLUTION;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.INDEX;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.INVALID_SESSION;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.RATE_LIMITED;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.REMEMBERED_CHOICE;
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.SHOW_FACTORS;
 import static java.util.Collections.EMPTY_MAP;
 import static se.curity.identityserver.sdk.web.ResponseModel.templateResponseModel;
 
 public final class OptInMFAuthenticationActionHandler implements ActionCompletionRequestHandler<Request>
 {
-    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
-
-    private final AuthenticatorDescriptorFactory _authenticatorDescriptorFactory;
-    private final SessionManager _sessionManager;
-    private final OptInMFAAuthenticationActionConfig _configuration;
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
+    private final AuthenticatorBatchResolver _authenticatorBatchResolver;
+    private final OptInMFASessionStore _sessionStore;
+    private final SecondFactorsLookup _secondFactorsLookup;
+    private final int _rememberMyChoiceDays;
     private final ExceptionFactory _exceptionFactory;
+    private final OptInMFAMetrics _metrics;
+    private final RememberChoiceCookieCodec _rememberChoiceCookieCodec;
+    @Nullable
+    private final RequestRateLimits _requestRateLimits;
+    @Nullable
+    private final FactorUsageStore _factorUsageStore;
 
     public OptInMFAuthenticationActionHandler(
-            AuthenticatorDescriptorFactory factory,
             SessionManager sessionManager,
             OptInMFAAuthenticationActionConfig configuration,
-            ExceptionFactory exceptionFactory)
+            ExceptionFactory exceptionFactory,
+            OptInMFAManagedObject managedObject)
     {
-        _authenticatorDescriptorFactory = factory;
-        _sessionManager = sessionManager;
-        _configuration = configuration;
+        _authenticatorModelRegistry = managedObject.getAuthenticatorModelRegistry();
+        _authenticatorBatchResolver = managedObject.getAuthenticatorBatchResolver();
+        _rememberMyChoiceDays = configuration.getRememberMyChoiceDaysLimit();
         _exceptionFactory = exceptionFactory;
+        _metrics = managedObject.getMetrics();
+        _rememberChoiceCookieCodec = managedObject.getRememberChoiceCookieCodec();
+        _requestRateLimits = managedObject.getRequestRateLimits();
+        _factorUsageStore = configuration.getFactorOrdering() == OptInMFAAuthenticationActionConfig.FactorOrdering.MOST_USED_FIRST
+                ? managedObject.getFactorUsageStore()
+                : null;
+        _sessionStore = new OptInMFASessionStore(sessionManager, configuration, _metrics);
+        _secondFactorsLookup = new SecondFactorsLookup(managedObject);
     }
 
     @Override
     public Optional<ActionCompletionResult> get(Request request, Response response)
     {
-        @Nullable Attribute secondFactorsAttribute = _sessionManager.remove(AVAILABLE_SECOND_FACTORS_ATTRIBUTE);
+        long startTime = _metrics.startTimer();
+
+        try
+        {
+            if (_requestRateLimits != null && !_requestRateLimits.tryAcquireForHandler(request.getClientIpAddress()))
+            {
+                _metrics.record(RATE_LIMITED);
+                throw _exceptionFactory.forbiddenException(ErrorCode.ACCESS_DENIED,
+                        RequestRateLimits.TOO_MANY_REQUESTS_MESSAGE);
+            }
 
-        if (secondFactorsAttribute == null)
+            return showFactorsOrContinueWithRememberedChoice(request, response);
+        }
+        finally
         {
-            throw new SecondFactorsInvalidException();
+            _metrics.record(INDEX, startTime);
         }
+    }
 
-        AttributeValue value = secondFactorsAttribute.getAttributeValue();
+    private Optional<ActionCompletionResult> showFactorsOrContinueWithRememberedChoice(Request request, Response response)
+    {
+        @Nullable OptInMFAState state = _sessionStore.read(OptInMFAState.Phase.PROMPTING);
 
-        if (!(value instanceof MapAttributeValue))
+        @Nullable Map<String, String> secondFactors = state == null || state.getPhase() != OptInMFAState.Phase.PROMPTING
+                ? null
+                : _secondFactorsLookup.getOfferedFactors(state);
+
+        if (secondFactors == null)
         {
-            throw new SecondFactorsInvalidException();
+            _metrics.record(INVALID_SESSION);
+            throw SecondFactorsInvalidException.INSTANCE;
         }
 
-        Map<String, Object> secondFactors = ((MapAttributeValue) value).getValue();
+        @Nullable String rememberedAcr = getRememberedAcr(request, state, secondFactors);
 
-        Map<String, AuthenticatorModel> authenticators = new HashMap<>(secondFactors.size());
+        if (rememberedAcr != null)
+        {
+            long resolutionStartTime = _metrics.startTimer();
+            @Nullable AuthenticatorDescriptor rememberedAuthenticator = _authenticatorModelRegistry.getDescriptor(rememberedAcr);
+            _metrics.record(DESCRIPTOR_RESOLUTION, resolutionStartTime);
 
-        secondFactors.forEach((name, acr) -> {
-            try
-            {
-                NonEmptyList<AuthenticatorDescriptor> descriptor = _authenticatorDescriptorFactory.getAuthenticatorDescriptors((String) acr);
-                authenticators.put((String) acr, of(descriptor.getFirst(), name));
-            }
-            catch (AuthenticatorNotConfiguredException e)
+            if (rememberedAuthenticator != null)
             {
-                _logger.info("Authenticator listed on user's profile but not available in system: {}", acr);
+                _sessionStore.write(OptInMFAState.chosen(rememberedAcr));
+
+                _metrics.record(REMEMBERED_CHOICE);
+                return Optional.of(ActionCompletionResult.complete());
             }
-        });
+        }
 
-        Cookie rememberChoiceCookie = request.getCookies().getFirst(REMEMBER_CHOICE_COOKIE_NAME);
+        long resolutionStartTime = _metrics.startTimer();
+        AuthenticatorBatchResolver.Resolution authenticators = _authenticatorBatchResolver.resolve(secondFactors);
+        _metrics.record(DESCRIPTOR_RESOLUTION, resolutionStartTime);
+        _metrics.record(SHOW_FACTORS);
 
-        if (rememberChoiceCookie != null && authenticators.containsKey(rememberChoiceCookie.getValue()))
+        if (state.isLegacy())
         {
-            _sessionManager.put(Attribute.of(CHOSEN_SECOND_FACTOR_ATTRIBUTE, rememberChoiceCookie.getValue()));
-            _sessionManager.put(Attribute.ofFlag(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE));
-            return Optional.of(ActionCompletionResult.complete());
+            // Reading the legacy state removed it, and choosing a factor needs the factors the user was offered
+            _sessionStore.write(state);
         }
 
-        response.putViewData("authenticators", authenticators, Response.ResponseModelScope.NOT_FAILURE);
-        response.putViewData("rememberMyChoiceDays", _configuration.getRememberMyChoiceDaysLimit(), Response.ResponseModelScope.NOT_FAILURE);
+        response.putViewData("authenticators", orderForUser(authenticators.getModelsByAcr(), state.getSubject()),
+                Response.ResponseModelScope.NOT_FAILURE);
+        response.putViewData("rememberMyChoiceDays", _rememberMyChoiceDays, Response.ResponseModelScope.NOT_FAILURE);
 
         return Optional.empty();
     }
 
+    /**
+     * @return the authenticators, with the one the user has used the most first if factors are ordered by use.
+     */
+    private Map<String, AuthenticatorModel> orderForUser(Map<String, AuthenticatorModel> authenticators,
+                                                         @Nullable String subject)
+    {
+        @Nullable String mostUsedAcr = _factorUsageStore == null || subject == null
+                ? null
+                : _factorUsageStore.getMostUsedAcr(subject);
+        @Nullable AuthenticatorModel mostUsed = mostUsedAcr == null ? null : authenticators.get(mostUsedAcr);
+
+        if (mostUsed == null || authenticators.keySet().iterator().next().equals(mostUsedAcr))
+        {
+            // The map is shared by all users with the same factors, so it is only copied when the order differs
+            return authenticators;
+        }
+
+        Map<String, AuthenticatorModel> ordered = new LinkedHashMap<>(authenticators.size() * 2);
+        ordered.put(mostUsedAcr, mostUsed);
+        ordered.putAll(authenticators);
+
+        return ordered;
+    }
+
+    /**
+     * @return the ACR remembered by a valid cookie issued to the user being prompted, if it is one of the offered
+     * factors.
+     */
+    @Nullable
+    private String getRememberedAcr(Request request, OptInMFAState state, Map<String, String> offeredFactors)
+    {
+        @Nullable Cookie rememberChoiceCookie = request.getCookies().getFirst(REMEMBER_CHOICE_COOKIE_NAME);
+        @Nullable String subject = state.getSubject();
+
+        if (rememberChoiceCookie == null || subject == null)
+        {
+            return null;
+        }
+
+        @Nullable String acr = _rememberChoiceCookieCodec.verify(rememberChoiceCookie.getValue(), subject,
+                System.currentTimeMillis() / 1000);
+
+        return acr != null && offeredFactors.containsValue(acr) ? acr : null;
+    }
+
     @Override
     public Optional<ActionCompletionResult> post(Request request, Response response)
     {
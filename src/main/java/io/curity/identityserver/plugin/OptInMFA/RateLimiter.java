@@ -0,0 +1,200 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket per key, such as a subject, which lets through a sustained number of requests per minute and bursts
+ * of up to a number of requests.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time at which it will be full again, updated by compare and
+ * set, as in the generic cell rate algorithm. Buckets live in a {@link ConcurrentHashMap}, so requests for different
+ * keys do not contend. A full bucket behaves exactly like a missing one, so full buckets can be dropped at any time,
+ * which {@link #evictFullBuckets()} does in one pass, meant to be run periodically. While the number of buckets is at
+ * the limit, a request for a new key makes room by dropping the least limited of a few sampled buckets, so that a
+ * burst of new clients is not locked out. Only those buckets lose what they have counted, so made up keys can at most
+ * reset the limits of keys which are close to full anyway.
+ */
+public final class RateLimiter
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    private final ConcurrentHashMap<String, AtomicLong> _buckets = new ConcurrentHashMap<>();
+    private final long _intervalNanos;
+    private final long _burstNanos;
+    private final int _maxKeys;
+    private final LongSupplier _nanoClock;
+    private final LongAdder _rejections = new LongAdder();
+    private final LongAdder _evictions = new LongAdder();
+    private final AtomicBoolean _atMaxKeys = new AtomicBoolean();
+
+    /**
+     * @param requestsPerMinute the sustained number of requests let through per key.
+     * @param burst             the number of requests let through at once for a key which has been idle.
+     * @param maxKeys           the number of keys tracked at once, beyond which tracked keys are dropped for new ones.
+     */
+    public RateLimiter(int requestsPerMinute, int burst, int maxKeys)
+    {
+        this(requestsPerMinute, burst, maxKeys, System::nanoTime);
+    }
+
+    RateLimiter(int requestsPerMinute, int burst, int maxKeys, LongSupplier nanoClock)
+    {
+        if (requestsPerMinute < 1 || burst < 1)
+        {
+            throw new IllegalArgumentException("requestsPerMinute and burst have to be positive");
+        }
+
+        _intervalNanos = TimeUnit.MINUTES.toNanos(1) / requestsPerMinute;
+        _burstNanos = _intervalNanos * burst;
+        _maxKeys = maxKeys;
+        _nanoClock = nanoClock;
+    }
+
+    /**
+     * @return true if the request is let through, false if the key has exceeded its rate.
+     */
+    public boolean tryAcquire(String key)
+    {
+        long now = _nanoClock.getAsLong();
+        AtomicLong bucket = _buckets.get(key);
+
+        if (bucket == null)
+        {
+            if (_buckets.size() >= _maxKeys)
+            {
+                evictLeastLimitedBucket();
+            }
+
+            bucket = _buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+        }
+
+        while (true)
+        {
+            long fullAt = bucket.get();
+            long start = fullAt - now < 0 ? now : fullAt;
+            long nextFullAt = start + _intervalNanos;
+
+            if (nextFullAt - now > _burstNanos)
+            {
+                _rejections.increment();
+                return false;
+            }
+
+            if (bucket.compareAndSet(fullAt, nextFullAt))
+            {
+                return true;
+            }
+        }
+    }
+
+    private void evictLeastLimitedBucket()
+    {
+        if (_atMaxKeys.compareAndSet(false, true))
+        {
+            _logger.warn("Tracking the maximum of {} keys, dropping the least limited ones to make room for new keys",
+                    _maxKeys);
+        }
+
+        Iterator<Map.Entry<String, AtomicLong>> buckets = _buckets.entrySet().iterator();
+        Map.Entry<String, AtomicLong> leastLimited = null;
+
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE && buckets.hasNext(); i++)
+        {
+            Map.Entry<String, AtomicLong> bucket = buckets.next();
+
+            if (leastLimited == null || bucket.getValue().get() - leastLimited.getValue().get() < 0)
+            {
+                leastLimited = bucket;
+            }
+        }
+
+        if (leastLimited != null && _buckets.remove(leastLimited.getKey(), leastLimited.getValue()))
+        {
+            _evictions.increment();
+        }
+    }
+
+    /**
+     * Gives back a request let through by {@link #tryAcquire(String)}, because it was rejected by another limit.
+     */
+    public void release(String key)
+    {
+        long now = _nanoClock.getAsLong();
+        AtomicLong bucket = _buckets.get(key);
+
+        if (bucket == null)
+        {
+            return;
+        }
+
+        while (true)
+        {
+            long fullAt = bucket.get();
+
+            if (fullAt - now <= 0 || bucket.compareAndSet(fullAt, fullAt - _intervalNanos))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the buckets which are full, making room for new keys.
+     */
+    public void evictFullBuckets()
+    {
+        long now = _nanoClock.getAsLong();
+        _buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+
+        if (_buckets.size() < _maxKeys)
+        {
+            _atMaxKeys.set(false);
+        }
+    }
+
+    public long getRejectionCount()
+    {
+        return _rejections.sum();
+    }
+
+    /**
+     * @return the number of buckets dropped to make room for new keys.
+     */
+    public long getEvictionCount()
+    {
+        return _evictions.sum();
+    }
+
+    public int size()
+    {
+        return _buckets.size();
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.curity.identityserver.sdk.Nullable;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Signs and verifies the value of the `remember my choice` cookie, which binds the chosen ACR to the subject and an
+ * expiry time, so that a cookie can neither be forged nor be used by another user.
+ * <p>
+ * The value has the form {@code <key-id>.<expiry>.<mac>.<acr>}, where the expiry is in epoch seconds and the MAC is
+ * a hex encoded HMAC-SHA256 over the subject, ACR and expiry. The ACR comes last, so that the value can be split on
+ * the first three dots whatever characters the ACR contains.
+ */
+public final class RememberChoiceCookieCodec
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char SEPARATOR = '.';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String GENERATED_KEY_ID = "node";
+
+    private final List<SigningKey> _keys;
+
+    private RememberChoiceCookieCodec(List<SigningKey> keys)
+    {
+        _keys = keys;
+    }
+
+    public static RememberChoiceCookieCodec create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        List<String> configuredKeys = configuration.getRememberChoiceCookieSigningKeys();
+        List<SigningKey> keys = new ArrayList<>(configuredKeys.size());
+
+        for (String configuredKey : configuredKeys)
+        {
+            int separator = configuredKey.indexOf(':');
+
+            if (separator < 1 || separator == configuredKey.length() - 1
+                    || configuredKey.lastIndexOf(SEPARATOR, separator) >= 0)
+            {
+                throw new IllegalArgumentException(
+                        "Signing keys of the remember choice cookie have to be of the form <key-id>:<secret>, where the key id contains no dots");
+            }
+
+            keys.add(new SigningKey(configuredKey.substring(0, separator),
+                    configuredKey.substring(separator + 1).getBytes(StandardCharsets.UTF_8)));
+        }
+
+        if (keys.isEmpty())
+        {
+            _logger.warn("No signing keys configured for the remember choice cookie, using a random key. " +
+                    "Remembered choices will only be honoured by this node, until it restarts.");
+
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            keys.add(new SigningKey(GENERATED_KEY_ID, secret));
+        }
+
+        return new RememberChoiceCookieCodec(Collections.unmodifiableList(keys));
+    }
+
+    public String encode(String subject, String acr, long expiresAtEpochSeconds)
+    {
+        SigningKey key = _keys.get(0);
+        byte[] mac = key.sign(subject, acr, expiresAtEpochSeconds);
+
+        StringBuilder value = new StringBuilder(key._id.length() + acr.length() + 2 * mac.length + 24);
+        value.append(key._id).append(SEPARATOR).append(expiresAtEpochSeconds).append(SEPARATOR);
+
+        for (byte b : mac)
+        {
+            value.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+
+        return value.append(SEPARATOR).append(acr).toString();
+    }
+
+    /**
+     * @return the ACR the cookie remembers, or null if the cookie is malformed, expired, signed with an unknown key,
+     * or issued to another subject.
+     */
+    @Nullable
+    public String verify(String cookieValue, String subject, long nowEpochSeconds)
+    {
+        int keyIdEnd = cookieValue.indexOf(SEPARATOR);
+        int expiryEnd = keyIdEnd < 0 ? -1 : cookieValue.indexOf(SEPARATOR, keyIdEnd + 1);
+        int macEnd = expiryEnd < 0 ? -1 : cookieValue.indexOf(SEPARATOR, expiryEnd + 1);
+
+        if (macEnd < 0 || macEnd == cookieValue.length() - 1)
+        {
+            return null;
+        }
+
+        @Nullable SigningKey key = findKey(cookieValue, keyIdEnd);
+        long expiresAt = parseEpochSeconds(cookieValue, keyIdEnd + 1, expiryEnd);
+
+        if (key == null || expiresAt <= nowEpochSeconds)
+        {
+            return null;
+        }
+
+        String acr = cookieValue.substring(macEnd + 1);
+        byte[] expectedMac = key.sign(subject, acr, expiresAt);
+
+        return hexEquals(expectedMac, cookieValue, expiryEnd + 1, macEnd) ? acr : null;
+    }
+
+    @Nullable
+    private SigningKey findKey(String cookieValue, int keyIdEnd)
+    {
+        for (SigningKey key : _keys)
+        {
+            if (key._id.length() == keyIdEnd && cookieValue.regionMatches(0, key._id, 0, keyIdEnd))
+            {
+                return key;
+            }
+        }
+
+        return null;
+    }
+
+    private static long parseEpochSeconds(String value, int start, int end)
+    {
+        // At most 18 digits, so that the result cannot overflow
+        if (start == end || end - start > 18)
+        {
+            return -1;
+        }
+
+        long result = 0;
+
+        for (int i = start; i < end; i++)
+        {
+            char c = value.charAt(i);
+
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
+    }
+
+    /**
+     * Compares in time independent of where the first difference is.
+     */
+    private static boolean hexEquals(byte[] expected, String value, int start, int end)
+    {
+        if (end - start != 2 * expected.length)
+        {
+            return false;
+        }
+
+        int difference = 0;
+
+        for (int i = 0; i < expected.length; i++)
+        {
+            difference |= HEX_DIGITS[(expected[i] >> 4) & 0xf] ^ value.charAt(start + 2 * i);
+            difference |= HEX_DIGITS[expected[i] & 0xf] ^ value.charAt(start + 2 * i + 1);
+        }
+
+        return difference == 0;
+    }
+
+    /**
+     * A key and the {@link Mac} instances initialised with it. Instances are taken from a pool owned by the key, rather
+     * than kept per thread, so that they are released with the codec when the configuration is reloaded, instead of
+     * staying on every request thread for as long as the node runs.
+     */
+    private static final class SigningKey
+    {
+        private final String _id;
+        private final SecretKeySpec _keySpec;
+        private final Queue<Mac> _macs = new ConcurrentLinkedQueue<>();
+
+        private SigningKey(String id, byte[] secret)
+        {
+            _id = id;
+            _keySpec = new SecretKeySpec(secret, ALGORITHM);
+        }
+
+        private byte[] sign(String subject, String acr, long expiresAtEpochSeconds)
+        {
+            @Nullable Mac pooledMac = _macs.poll();
+            Mac mac = pooledMac == null ? newMac() : pooledMac;
+
+            mac.update(subject.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(acr.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+
+            for (int shift = 56; shift >= 0; shift -= 8)
+            {
+                mac.update((byte) (expiresAtEpochSeconds >>> shift));
+            }
+
+            byte[] signature = mac.doFinal();
+            _macs.offer(mac);
+
+            return signature;
+        }
+
+        private Mac newMac()
+        {
+            try
+            {
+                Mac mac = Mac.getInstance(ALGORITHM);
+                mac.init(_keySpec);
+                return mac;
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("HMAC-SHA256 is not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rate limits applied before the action or its handlers touch the session or account store.
+ * <p>
+ * The action is limited per subject and per authentication transaction. The handlers are limited per client address,
+ * since the user is only known once the session has been read. Idle keys are dropped by a daemon thread every few
+ * seconds, rather than by the requests themselves.
+ */
+public final class RequestRateLimits
+{
+    static final String TOO_MANY_REQUESTS_MESSAGE = "Too many requests. Please wait a moment and try again.";
+
+    private static final int EVICTION_INTERVAL_SECONDS = 5;
+
+    private final RateLimiter _subjects;
+    private final RateLimiter _transactions;
+    private final RateLimiter _clients;
+    private final ScheduledExecutorService _evictionScheduler;
+
+    private RequestRateLimits(OptInMFAAuthenticationActionConfig configuration)
+    {
+        int maxKeys = configuration.getRateLimitMaxTrackedKeys();
+
+        _subjects = new RateLimiter(configuration.getSubjectRateLimitPerMinute(),
+                configuration.getSubjectRateLimitBurst(), maxKeys);
+        _transactions = new RateLimiter(configuration.getTransactionRateLimitPerMinute(),
+                configuration.getTransactionRateLimitBurst(), maxKeys);
+        _clients = new RateLimiter(configuration.getClientRateLimitPerMinute(),
+                configuration.getClientRateLimitBurst(), maxKeys);
+
+        _evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "optinmfa-rate-limits-" + configuration.id());
+            thread.setDaemon(true);
+            return thread;
+        });
+        _evictionScheduler.scheduleWithFixedDelay(this::evictIdleKeys, EVICTION_INTERVAL_SECONDS,
+                EVICTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the rate limits, or null if rate limiting is disabled.
+     */
+    @Nullable
+    public static RequestRateLimits create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        return configuration.isRateLimitingEnabled() ? new RequestRateLimits(configuration) : null;
+    }
+
+    public boolean tryAcquireForAction(String subject, String transactionId)
+    {
+        if (!_subjects.tryAcquire(subject))
+        {
+            return false;
+        }
+
+        if (!_transactions.tryAcquire(transactionId))
+        {
+            // A request rejected for its transaction does not count against the user
+            _subjects.release(subject);
+            return false;
+        }
+
+        return true;
+    }
+
+    public boolean tryAcquireForHandler(@Nullable String clientAddress)
+    {
+        return clientAddress == null || _clients.tryAcquire(clientAddress);
+    }
+
+    public long getRejectionCount()
+    {
+        return _subjects.getRejectionCount() + _transactions.getRejectionCount() + _clients.getRejectionCount();
+    }
+
+    public long getEvictionCount()
+    {
+        return _subjects.getEvictionCount() + _transactions.getEvictionCount() + _clients.getEvictionCount();
+    }
+
+    public int size()
+    {
+        return _subjects.size() + _transactions.size() + _clients.size();
+    }
+
+    void evictIdleKeys()
+    {
+        _subjects.evictFullBuckets();
+        _transactions.evictFullBuckets();
+        _clients.evictFullBuckets();
+    }
+
+    public void close()
+    {
+        _evictionScheduler.shutdownNow();
+    }
+}
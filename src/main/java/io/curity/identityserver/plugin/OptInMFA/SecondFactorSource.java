@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Map;
+
+/**
+ * Where the second factors of users are read from, when they are neither cached nor put in the attributes.
+ * <p>
+ * A source is shared by all requests, so it has to be safe to call from many threads at once.
+ */
+public interface SecondFactorSource
+{
+    /**
+     * @param subject the user whose factors to read.
+     * @return the second factors of the user, as a map of user-defined names to ACRs, or null if the user has none.
+     */
+    @Nullable
+    Map<String, String> getSecondFactors(String subject);
+
+    /**
+     * Releases the resources held by the source, when the configuration it was created from is replaced.
+     */
+    default void close()
+    {
+    }
+}
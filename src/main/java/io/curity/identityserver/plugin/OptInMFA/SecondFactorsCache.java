@@ -0,0 +1,189 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the second factors of recently seen users, keyed by subject, so that returning users do not need an account
+ * lookup on every login.
+ * <p>
+ * Each entry remembers the version of the factors it was loaded with, if the account has one, so that a node notices
+ * that a user has changed their factors on another node as soon as it sees a newer version, without any messaging
+ * between the nodes.
+ */
+public final class SecondFactorsCache
+{
+    @Nullable
+    private final BoundedTtlCache<String, Entry> _cache;
+    private final LongAdder _staleCount = new LongAdder();
+
+    private SecondFactorsCache(@Nullable BoundedTtlCache<String, Entry> cache)
+    {
+        _cache = cache;
+    }
+
+    public static SecondFactorsCache create(OptInMFAAuthenticationActionConfig configuration)
+    {
+        if (!configuration.isSecondFactorsCacheEnabled())
+        {
+            return disabled();
+        }
+
+        return new SecondFactorsCache(new BoundedTtlCache<>(configuration.getSecondFactorsCacheMaxEntries(),
+                configuration.getSecondFactorsCacheTtlSeconds(), TimeUnit.SECONDS));
+    }
+
+    public static SecondFactorsCache disabled()
+    {
+        return new SecondFactorsCache(null);
+    }
+
+    public boolean isEnabled()
+    {
+        return _cache != null;
+    }
+
+    /**
+     * @return the cached second factors of the user, as a map of user-defined names to ACRs, or null when the user
+     * is not cached or the entry has expired.
+     */
+    @Nullable
+    public Map<String, String> get(String subject)
+    {
+        return get(subject, null);
+    }
+
+    /**
+     * @param version the current version of the user's factors, or null if it is not known.
+     * @return the cached second factors of the user, or null when the user is not cached, the entry has expired, or it
+     * was loaded with another version than the current one.
+     */
+    @Nullable
+    public Map<String, String> get(String subject, @Nullable String version)
+    {
+        @Nullable Entry entry = _cache == null ? null : _cache.get(subject);
+
+        if (entry == null)
+        {
+            return null;
+        }
+
+        if (version != null && !version.equals(entry._version))
+        {
+            _staleCount.increment();
+            return null;
+        }
+
+        return entry._secondFactors;
+    }
+
+    public void put(String subject, Map<String, String> secondFactors)
+    {
+        put(subject, secondFactors, null);
+    }
+
+    /**
+     * @param version the version of the user's factors they were loaded with, or null if it is not known. When it is
+     *                not known, the version of the cached entry is kept as long as the factors have not changed.
+     */
+    public void put(String subject, Map<String, String> secondFactors, @Nullable String version)
+    {
+        if (_cache == null)
+        {
+            return;
+        }
+
+        Map<String, String> copiedSecondFactors = Collections.unmodifiableMap(new LinkedHashMap<>(secondFactors));
+
+        if (version != null)
+        {
+            _cache.put(subject, new Entry(copiedSecondFactors, version));
+            return;
+        }
+
+        _cache.update(subject, cachedEntry -> new Entry(copiedSecondFactors,
+                cachedEntry != null && cachedEntry._secondFactors.equals(copiedSecondFactors)
+                        ? cachedEntry._version
+                        : null));
+    }
+
+    /**
+     * Drops the cached entry of a user, e.g. after the user has registered or removed a factor.
+     */
+    public void invalidate(String subject)
+    {
+        if (_cache != null)
+        {
+            _cache.invalidate(subject);
+        }
+    }
+
+    public void invalidateAll()
+    {
+        if (_cache != null)
+        {
+            _cache.invalidateAll();
+        }
+    }
+
+    public long getHitCount()
+    {
+        return _cache == null ? 0 : _cache.getHitCount();
+    }
+
+    public long getMissCount()
+    {
+        return _cache == null ? 0 : _cache.getMissCount();
+    }
+
+    /**
+     * @return the number of entries found to be of an older version than the user's factors.
+     */
+    public long getStaleCount()
+    {
+        return _staleCount.sum();
+    }
+
+    public long getEvictionCount()
+    {
+        return _cache == null ? 0 : _cache.getEvictionCount();
+    }
+
+    public int size()
+    {
+        return _cache == null ? 0 : _cache.size();
+    }
+
+    private static final class Entry
+    {
+        private final Map<String, String> _secondFactors;
+        @Nullable
+        private final String _version;
+
+        private Entry(Map<String, String> secondFactors, @Nullable String version)
+        {
+            _secondFactors = secondFactors;
+            _version = version;
+        }
+    }
+}
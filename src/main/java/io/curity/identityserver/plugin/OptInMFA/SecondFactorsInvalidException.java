@@ -1,7 +1,12 @@
 package io.curity.identityserver.plugin.OptInMFA;
 
-public class SecondFactorsInvalidException extends RuntimeException
+/**
+ * Thrown when the session does not hold a prompt the request can continue, or the request does not match it.
+ */
+public class SecondFactorsInvalidException extends StacklessException
 {
+    static final SecondFactorsInvalidException INSTANCE = new SecondFactorsInvalidException();
+
     public SecondFactorsInvalidException()
     {
         super("There was a problem with the authentication. Please start the process again.");
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import se.curity.identityserver.sdk.Nullable;
+
+import java.util.Map;
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.ACCOUNT_LOOKUP;
+
+/**
+ * Looks up the second factors of a user, from the cache when they are there and from the configured
+ * {@link SecondFactorSource} otherwise, through the {@link AccountLookupGuard} if account lookups are guarded.
+ */
+public final class SecondFactorsLookup
+{
+    private final SecondFactorSource _secondFactorSource;
+    private final SecondFactorsCache _secondFactorsCache;
+    private final OptInMFAMetrics _metrics;
+    @Nullable
+    private final AccountLookupGuard _accountLookupGuard;
+
+    public SecondFactorsLookup(OptInMFAManagedObject managedObject)
+    {
+        _secondFactorSource = managedObject.getSecondFactorSource();
+        _secondFactorsCache = managedObject.getSecondFactorsCache();
+        _metrics = managedObject.getMetrics();
+        _accountLookupGuard = managedObject.getAccountLookupGuard();
+    }
+
+    /**
+     * @param subject the user whose factors to look up.
+     * @param refresh true to read the factors from the source even if they are cached.
+     * @return the second factors of the user, as a map of user-defined names to ACRs, or null if the user has none.
+     * @throws SecondFactorsUnavailableException if the source could not be read and there is nothing to fall back on.
+     */
+    @Nullable
+    public Map<String, String> lookUp(String subject, boolean refresh)
+    {
+        return lookUp(subject, null, refresh);
+    }
+
+    /**
+     * @param version the current version of the user's factors, which cached factors have to have been loaded with,
+     *                or null to use cached factors of any version.
+     * @see #lookUp(String, boolean)
+     */
+    @Nullable
+    public Map<String, String> lookUp(String subject, @Nullable String version, boolean refresh)
+    {
+        if (!refresh)
+        {
+            @Nullable Map<String, String> cachedSecondFactors = _secondFactorsCache.get(subject, version);
+
+            if (cachedSecondFactors != null)
+            {
+                return cachedSecondFactors;
+            }
+        }
+
+        if (_accountLookupGuard == null)
+        {
+            return cache(subject, readSource(subject), version);
+        }
+
+        AccountLookupGuard.Result result = _accountLookupGuard.lookUp(subject, () -> readSource(subject));
+
+        if (result.isLastKnown())
+        {
+            // The last known factors may be older than the current version, and caching them as such would hide that
+            return result.getSecondFactors();
+        }
+
+        return cache(subject, result.getSecondFactors(), version);
+    }
+
+    @Nullable
+    private Map<String, String> cache(String subject, @Nullable Map<String, String> secondFactors,
+                                      @Nullable String version)
+    {
+        if (secondFactors == null || secondFactors.isEmpty())
+        {
+            _secondFactorsCache.invalidate(subject);
+            return null;
+        }
+
+        _secondFactorsCache.put(subject, secondFactors, version);
+
+        return secondFactors;
+    }
+
+    /**
+     * @param state the state of a user being prompted.
+     * @return the factors the user was prompted with, looked up again if the state only holds their digest, or null
+     * if the factors of the user no longer match the digest or could not be looked up.
+     */
+    @Nullable
+    public Map<String, String> getOfferedFactors(OptInMFAState state)
+    {
+        @Nullable String digest = state.getSecondFactorsDigest();
+
+        if (digest == null)
+        {
+            return state.getSecondFactors();
+        }
+
+        @Nullable String subject = state.getSubject();
+
+        if (subject == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            @Nullable Map<String, String> secondFactors = lookUp(subject, false);
+
+            if (secondFactors != null && !FactorSetDigest.matches(digest, secondFactors))
+            {
+                // The cached factors may be older than the ones the user was prompted with
+                secondFactors = lookUp(subject, true);
+            }
+
+            return secondFactors != null && FactorSetDigest.matches(digest, secondFactors) ? secondFactors : null;
+        }
+        catch (SecondFactorsUnavailableException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param state the state of a user being prompted.
+     * @param acr   the ACR the user chose.
+     * @return true if the ACR is one of the factors the user was prompted with. Unless the prompt was written by an
+     * earlier version, this is answered from the state alone.
+     */
+    public boolean isOffered(OptInMFAState state, String acr)
+    {
+        @Nullable String offeredAcrs = state.getOfferedAcrs();
+
+        if (offeredAcrs != null)
+        {
+            return OfferedAcrs.contains(offeredAcrs, acr);
+        }
+
+        @Nullable Map<String, String> offeredFactors = getOfferedFactors(state);
+
+        return offeredFactors != null && offeredFactors.containsValue(acr);
+    }
+
+    @Nullable
+    private Map<String, String> readSource(String subject)
+    {
+        long accountLookupStartTime = _metrics.startTimer();
+        @Nullable Map<String, String> secondFactors = _secondFactorSource.getSecondFactors(subject);
+        _metrics.record(ACCOUNT_LOOKUP, accountLookupStartTime);
+
+        return secondFactors;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+/**
+ * Thrown when the second factors of a user could not be looked up and there is nothing to fall back on.
+ */
+public class SecondFactorsUnavailableException extends StacklessException
+{
+    static final SecondFactorsUnavailableException ACCOUNT_STORE_FAILING =
+            new SecondFactorsUnavailableException("the account store is failing");
+    static final SecondFactorsUnavailableException TOO_MANY_PENDING =
+            new SecondFactorsUnavailableException("too many lookups are running");
+    static final SecondFactorsUnavailableException FAILED =
+            new SecondFactorsUnavailableException("the lookup failed");
+
+    public SecondFactorsUnavailableException(String reason)
+    {
+        super("Second factors of the user are unavailable, because " + reason);
+    }
+}
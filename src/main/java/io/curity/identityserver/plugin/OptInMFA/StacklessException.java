@@ -0,0 +1,17 @@
+package io.curity.identityserver.plugin.OptInMFA;
+
+/**
+ * An exception without a stack trace, for failures which are part of the normal course of things.
+ * <p>
+ * These are what bots replaying or forging requests, and logins during an outage of the account store, run into, so
+ * filling in a stack trace for each would cost the most exactly when the server is under the most load. The stack
+ * trace would not tell anything the message does not, either. Subclasses keep a single shared instance for each
+ * message, rather than make a new one each time.
+ */
+public abstract class StacklessException extends RuntimeException
+{
+    protected StacklessException(String message)
+    {
+        super(message, null, false, false);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Makes the first use of the cryptography the flow relies on when a configuration is loaded, and resolves the
+ * authenticators of the most common second factors on the first request, so that the logins after it do not each pay
+ * for resolving their own.
+ * <p>
+ * Authenticators are resolved on a request thread, since the descriptor factory is part of the request context of the
+ * server. Resolving them stops when the time budget is spent, so the first request is never held up for much longer.
+ */
+final class StartupWarmUp
+{
+    private static final Logger _logger = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String WARM_UP_SUBJECT = "warm-up";
+
+    private final List<String> _acrs;
+    private final long _budgetNanos;
+    private final AuthenticatorModelRegistry _authenticatorModelRegistry;
+    private final AtomicBoolean _primed;
+
+    private StartupWarmUp(List<String> acrs, long budgetNanos, AuthenticatorModelRegistry authenticatorModelRegistry)
+    {
+        _acrs = acrs;
+        _budgetNanos = budgetNanos;
+        _authenticatorModelRegistry = authenticatorModelRegistry;
+        _primed = new AtomicBoolean(acrs.isEmpty() || budgetNanos <= 0);
+    }
+
+    /**
+     * Warms up the cryptography, on the calling thread.
+     *
+     * @return the warm-up, whose authenticators are yet to be resolved.
+     */
+    static StartupWarmUp create(OptInMFAAuthenticationActionConfig configuration,
+                                AuthenticatorModelRegistry authenticatorModelRegistry,
+                                RememberChoiceCookieCodec rememberChoiceCookieCodec)
+    {
+        List<String> acrs = configuration.getWarmUpAcrs();
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getWarmUpBudgetMillis());
+
+        if (!acrs.isEmpty() && budgetNanos > 0)
+        {
+            try
+            {
+                warmUpCryptography(rememberChoiceCookieCodec, acrs);
+            }
+            catch (RuntimeException e)
+            {
+                // The first logins will then do what the warm-up could not
+                _logger.info("Warm-up failed: {}", e.getMessage());
+            }
+        }
+
+        return new StartupWarmUp(acrs, budgetNanos, authenticatorModelRegistry);
+    }
+
+    /**
+     * Resolves the authenticators to warm up, on the first request to call this, for at most the configured budget.
+     * Later calls return at once.
+     *
+     * @return the number of authenticators resolved.
+     */
+    int resolveAuthenticators()
+    {
+        if (_primed.get() || !_primed.compareAndSet(false, true))
+        {
+            return 0;
+        }
+
+        long startTime = System.nanoTime();
+        int resolvedCount = 0;
+
+        for (String acr : _acrs)
+        {
+            if (System.nanoTime() - startTime >= _budgetNanos)
+            {
+                _logger.info("Warm-up exceeded its budget of {} ms, resolved {} of {} authenticators",
+                        TimeUnit.NANOSECONDS.toMillis(_budgetNanos), resolvedCount, _acrs.size());
+
+                return resolvedCount;
+            }
+
+            if (_authenticatorModelRegistry.getDescriptor(acr) != null)
+            {
+                resolvedCount++;
+            }
+        }
+
+        _logger.debug("Warm-up resolved {} of {} authenticators in {} ms", resolvedCount, _acrs.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
+        return resolvedCount;
+    }
+
+    /**
+     * Loads the security providers and algorithms used to sign cookies and digest factors, which is slow the first
+     * time.
+     */
+    private static void warmUpCryptography(RememberChoiceCookieCodec rememberChoiceCookieCodec, List<String> acrs)
+    {
+        String acr = acrs.get(0);
+        long nowEpochSeconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        String cookieValue = rememberChoiceCookieCodec.encode(WARM_UP_SUBJECT, acr, nowEpochSeconds + 60);
+
+        rememberChoiceCookieCodec.verify(cookieValue, WARM_UP_SUBJECT, nowEpochSeconds);
+        FactorSetDigest.of(Collections.singletonMap(acr, acr));
+        OfferedAcrs.encode(acrs);
+    }
+}
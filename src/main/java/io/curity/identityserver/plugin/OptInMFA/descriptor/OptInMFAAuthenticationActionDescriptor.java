@@ -18,6 +18,7 @@ package io.curity.identityserver.plugin.OptInMFA.descriptor;
 import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction;
 import io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig;
 import io.curity.identityserver.plugin.OptInMFA.OptInMFAChooseFactorHandler;
+import io.curity.identityserver.plugin.OptInMFA.OptInMFAManagedObject;
 import io.curity.identityserver.plugin.OptInMFA.OptInMFAuthenticationActionHandler;
 import se.curity.identityserver.sdk.authenticationaction.AuthenticationAction;
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionRequestHandler;
@@ -27,6 +28,7 @@ import se.curity.identityserver.sdk.web.RequestHandlerSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Optional;
 
 public final class OptInMFAAuthenticationActionDescriptor implements AuthenticationActionPluginDescriptor<OptInMFAAuthenticationActionConfig>
 {
@@ -64,6 +66,12 @@ public final class OptInMFAAuthenticationActionDescriptor implements Authenticat
         return _handlerTypes;
     }
 
+    @Override
+    public Optional<OptInMFAManagedObject> createManagedObject(OptInMFAAuthenticationActionConfig configuration)
+    {
+        return Optional.of(new OptInMFAManagedObject(configuration));
+    }
+
     @Override
     public RequestHandlerSet allowedHandlersForCrossSiteNonSafeRequests()
     {
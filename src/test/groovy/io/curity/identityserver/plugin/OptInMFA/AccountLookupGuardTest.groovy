@@ -0,0 +1,234 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.LongSupplier
+import java.util.function.Supplier
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig.AccountLookupFallback.FAIL_CLOSED
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig.AccountLookupFallback.LAST_KNOWN_FACTORS
+
+class AccountLookupGuardTest extends Specification {
+
+    def release = new CountDownLatch(1)
+    def now = new AtomicLong(1)
+    def factors = ["My email": "email1"]
+    def failingLookup = { throw new IllegalStateException("down") } as Supplier
+
+    def cleanup() {
+        release.countDown()
+    }
+
+    def "should look up the factors on the calling thread"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 5)
+        def lookupThread = null
+
+        when:
+        def result = guard.lookUp("john", { lookupThread = Thread.currentThread(); factors } as Supplier)
+
+        then:
+        result.secondFactors == factors
+        !result.lastKnown
+        lookupThread.is(Thread.currentThread())
+        guard.pendingCount == 0
+    }
+
+    def "should use the factors of a slow lookup, but count it as a timeout"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 5)
+
+        when:
+        def result = guard.lookUp("john", slowLookup())
+
+        then:
+        result.secondFactors == factors
+        !result.lastKnown
+        guard.timeoutCount == 1
+    }
+
+    def "should fail closed when the lookup fails"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 5)
+
+        when:
+        guard.lookUp("john", failingLookup)
+
+        then:
+        def e = thrown SecondFactorsUnavailableException
+        e.is(SecondFactorsUnavailableException.FAILED)
+        e.stackTrace.length == 0
+        guard.failureCount == 1
+    }
+
+    def "should fall back to the last known factors when the lookup fails"()
+    {
+        given:
+        def guard = getGuard(LAST_KNOWN_FACTORS, 5)
+        guard.lookUp("john", { factors } as Supplier)
+
+        when:
+        def result = guard.lookUp("john", failingLookup)
+
+        then:
+        result.secondFactors == factors
+        result.lastKnown
+        guard.fallbackCount == 1
+
+        when:
+        guard.lookUp("jane", failingLookup)
+
+        then:
+        thrown SecondFactorsUnavailableException
+    }
+
+    def "should not attempt lookups once they have failed repeatedly"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 2)
+        def lookups = new AtomicInteger()
+        def countedLookup = { lookups.incrementAndGet(); slowLookup().get() } as Supplier
+
+        when:
+        3.times { lookUpIgnoringUnavailable(guard, countedLookup) }
+
+        then:
+        lookups.get() == 2
+        guard.timeoutCount == 2
+        guard.shortCircuitCount == 1
+    }
+
+    def "should let a single trial lookup through once the circuit has been open for long enough"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 1)
+        lookUpIgnoringUnavailable(guard, failingLookup)
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30))
+        def started = new CountDownLatch(1)
+        def trial = Thread.start {
+            guard.lookUp("john", { started.countDown(); release.await(); factors } as Supplier)
+        }
+        started.await()
+
+        when:
+        guard.lookUp("jane", { factors } as Supplier)
+
+        then:
+        thrown SecondFactorsUnavailableException
+        guard.shortCircuitCount == 1
+
+        when:
+        release.countDown()
+        trial.join()
+
+        then:
+        guard.lookUp("jane", { factors } as Supplier).secondFactors == factors
+    }
+
+    def "should open the circuit again when the trial lookup fails"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 1)
+        lookUpIgnoringUnavailable(guard, failingLookup)
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30))
+        def lookups = new AtomicInteger()
+
+        when:
+        lookUpIgnoringUnavailable(guard, failingLookup)
+        lookUpIgnoringUnavailable(guard, { lookups.incrementAndGet(); factors } as Supplier)
+
+        then:
+        lookups.get() == 0
+        guard.failureCount == 2
+        guard.shortCircuitCount == 1
+    }
+
+    def "should not run more lookups at once than allowed"()
+    {
+        given:
+        def guard = getGuard(FAIL_CLOSED, 0, 1)
+        def started = new CountDownLatch(1)
+        Thread.start {
+            guard.lookUp("john", { started.countDown(); release.await(); factors } as Supplier)
+        }
+        started.await()
+
+        when:
+        guard.lookUp("jane", { factors } as Supplier)
+
+        then:
+        def e = thrown SecondFactorsUnavailableException
+        e.is(SecondFactorsUnavailableException.TOO_MANY_PENDING)
+        guard.rejectionCount == 1
+        guard.pendingCount == 1
+    }
+
+    private Supplier slowLookup()
+    {
+        return { now.addAndGet(TimeUnit.MILLISECONDS.toNanos(51)); factors } as Supplier
+    }
+
+    private static void lookUpIgnoringUnavailable(AccountLookupGuard guard, Supplier lookup)
+    {
+        try
+        {
+            guard.lookUp("john", lookup)
+        }
+        catch (SecondFactorsUnavailableException ignored)
+        {
+        }
+    }
+
+    private AccountLookupGuard getGuard(OptInMFAAuthenticationActionConfig.AccountLookupFallback fallback,
+                                        int failureThreshold, int maxPending = 64)
+    {
+        AccountLookupGuard.create(new TestActionConfiguration(null, null, null) {
+            @Override
+            boolean isAccountLookupGuardEnabled() {
+                return true
+            }
+
+            @Override
+            int getAccountLookupTimeoutMillis() {
+                return 50
+            }
+
+            @Override
+            int getAccountLookupMaxPending() {
+                return maxPending
+            }
+
+            @Override
+            int getAccountLookupCircuitBreakerFailureThreshold() {
+                return failureThreshold
+            }
+
+            @Override
+            OptInMFAAuthenticationActionConfig.AccountLookupFallback getAccountLookupFallback() {
+                return fallback
+            }
+        }, { now.get() } as LongSupplier)
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import se.curity.identityserver.sdk.authentication.AuthenticatedSessions
+import spock.lang.Specification
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig.StepUpPolicy.ANY_REGISTERED
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationActionConfig.StepUpPolicy.MINIMUM_STRENGTH
+
+class AuthenticatedSessionPolicyTest extends Specification {
+
+    def "should let a user skip the prompt when they have authenticated with a factor the policy accepts"()
+    {
+        given:
+        def policy = AuthenticatedSessionPolicy.create(configurationWithPolicy(stepUpPolicy, ["webauthn", "totp", "sms", "email"]))
+        def authenticatedSessions = Stub(AuthenticatedSessions)
+        authenticatedSessions.contains(_) >> { String acr -> sessionAcrs.contains(acr) }
+
+        expect:
+        policy.findSatisfyingAcr(registeredAcrs, null, authenticatedSessions) == expectedAcr
+
+        where:
+        stepUpPolicy     | registeredAcrs     | sessionAcrs  | expectedAcr
+        ANY_REGISTERED   | ["sms", "email"]   | ["email"]    | "email"
+        ANY_REGISTERED   | ["sms", "email"]   | ["webauthn"] | null
+        ANY_REGISTERED   | ["sms"]            | []           | null
+        MINIMUM_STRENGTH | ["sms", "email"]   | ["email"]    | "email"
+        MINIMUM_STRENGTH | ["sms", "email"]   | ["webauthn"] | "webauthn"
+        MINIMUM_STRENGTH | ["sms", "email"]   | ["totp"]     | "totp"
+        MINIMUM_STRENGTH | ["totp", "email"]  | ["sms"]      | "sms"
+        MINIMUM_STRENGTH | ["webauthn"]       | ["totp"]     | null
+        MINIMUM_STRENGTH | ["totp", "custom"] | ["webauthn"] | "webauthn"
+        MINIMUM_STRENGTH | ["custom"]         | ["webauthn"] | null
+    }
+
+    def "should ask the authenticated sessions about each factor at most once"()
+    {
+        given:
+        def policy = AuthenticatedSessionPolicy.create(configurationWithPolicy(MINIMUM_STRENGTH, ["webauthn", "totp", "sms"]))
+        def authenticatedSessions = Mock(AuthenticatedSessions)
+
+        when:
+        def acr = policy.findSatisfyingAcr(["sms", "totp"], null, authenticatedSessions)
+
+        then:
+        acr == null
+        1 * authenticatedSessions.contains("sms") >> false
+        1 * authenticatedSessions.contains("totp") >> false
+        1 * authenticatedSessions.contains("webauthn") >> false
+        0 * authenticatedSessions._
+    }
+
+    def "should not let a session of the first factor stand in for a second factor"()
+    {
+        given:
+        def policy = AuthenticatedSessionPolicy.create(configurationWithPolicy(MINIMUM_STRENGTH, ["webauthn", "sms"]))
+        def authenticatedSessions = Stub(AuthenticatedSessions)
+        authenticatedSessions.contains("webauthn") >> true
+
+        expect:
+        policy.findSatisfyingAcr(["sms"], "webauthn", authenticatedSessions) == null
+        policy.findSatisfyingAcr(["sms"], "username-password", authenticatedSessions) == "webauthn"
+    }
+
+    def "should refuse a ranking of factors which are not configured as second factors"()
+    {
+        given:
+        def configuration = new TestActionConfiguration(null, null, null) {
+            @Override
+            OptInMFAAuthenticationActionConfig.StepUpPolicy getStepUpPolicy() {
+                return MINIMUM_STRENGTH
+            }
+
+            @Override
+            List<String> getFactorStrengthRanking() {
+                return ["webauthn", "username-password", "sms"]
+            }
+
+            @Override
+            List<String> getSecondFactorAcrs() {
+                return ["webauthn", "sms"]
+            }
+        }
+
+        when:
+        AuthenticatedSessionPolicy.create(configuration)
+
+        then:
+        thrown IllegalArgumentException
+    }
+
+    private static def configurationWithPolicy(OptInMFAAuthenticationActionConfig.StepUpPolicy policy,
+                                               List<String> ranking)
+    {
+        new TestActionConfiguration(null, null, null) {
+            @Override
+            OptInMFAAuthenticationActionConfig.StepUpPolicy getStepUpPolicy() {
+                return policy
+            }
+
+            @Override
+            List<String> getFactorStrengthRanking() {
+                return ranking
+            }
+
+            @Override
+            List<String> getSecondFactorAcrs() {
+                return ranking
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import se.curity.identityserver.sdk.NonEmptyList
+import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+class AuthenticatorBatchResolverTest extends Specification {
+
+    def "should order the factors by name whatever the order of the user's factors"()
+    {
+        given:
+        def resolver = getResolver(getFactory())
+
+        when:
+        def resolution = resolver.resolve(secondFactors)
+
+        then:
+        resolution.models*.description == ["My email", "My sms", "Work email"]
+        resolution.modelsByAcr.keySet() as List == ["email1", "sms1", "email2"]
+
+        where:
+        secondFactors << [
+                ["Work email": "email2", "My sms": "sms1", "My email": "email1"],
+                ["My sms": "sms1", "My email": "email1", "Work email": "email2"]
+        ]
+    }
+
+    def "should resolve each ACR once and show one factor per ACR"()
+    {
+        given:
+        def factory = Mock(AuthenticatorDescriptorFactory)
+        def resolver = getResolver(factory)
+
+        when:
+        def resolution = resolver.resolve(["My email": "email1", "Other email": "email1"])
+
+        then:
+        1 * factory.getAuthenticatorDescriptors("email1") >> NonEmptyList.of(getDescriptor("email1"))
+        resolution.models*.description == ["My email"]
+    }
+
+    def "should return the ACRs which are not configured"()
+    {
+        given:
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors("email1") >> NonEmptyList.of(getDescriptor("email1"))
+        factory.getAuthenticatorDescriptors("removed") >> { throw new AuthenticatorNotConfiguredException("") }
+        def resolver = getResolver(factory)
+
+        when:
+        def resolution = resolver.resolve(["My email": "email1", "Old": "removed"])
+
+        then:
+        resolution.models*.acr == ["email1"]
+        resolution.unresolvedAcrs == ["removed"] as Set
+    }
+
+    def "should resolve many unknown ACRs once each"()
+    {
+        given:
+        def lookups = new ConcurrentHashMap<String, AtomicInteger>()
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> { String acr ->
+            lookups.computeIfAbsent(acr, { new AtomicInteger() }).incrementAndGet()
+            NonEmptyList.of(getDescriptor(acr))
+        }
+        def resolver = getResolver(factory)
+        def secondFactors = (0..<50).collectEntries { ["Factor ${it}".toString(), "acr${it}".toString()] }
+
+        when:
+        def resolution = resolver.resolve(secondFactors)
+        resolver.resolve(secondFactors)
+
+        then:
+        resolution.models.size() == 50
+        lookups.size() == 50
+        lookups.values().every { it.get() == 1 }
+    }
+
+    def "should reuse the resolution of the same factors in any order"()
+    {
+        given:
+        def resolver = getResolver(getFactory(), 10)
+
+        when:
+        def first = resolver.resolve(["My sms": "sms1", "My email": "email1"])
+        def second = resolver.resolve(["My email": "email1", "My sms": "sms1"])
+        def other = resolver.resolve(["My email": "email1"])
+
+        then:
+        second.is(first)
+        !other.is(first)
+        resolver.cacheHitCount == 1
+        resolver.cacheMissCount == 2
+    }
+
+    def "should not cache a resolution in which an ACR is not configured"()
+    {
+        given:
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors("email1") >> NonEmptyList.of(getDescriptor("email1"))
+        factory.getAuthenticatorDescriptors("removed") >> { throw new AuthenticatorNotConfiguredException("") }
+        def resolver = getResolver(factory, 10)
+
+        when:
+        resolver.resolve(["My email": "email1", "Old": "removed"])
+
+        then:
+        resolver.cacheSize == 0
+    }
+
+    private def getFactory()
+    {
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> { String acr -> NonEmptyList.of(getDescriptor(acr)) }
+        factory
+    }
+
+    private def getDescriptor(String acr)
+    {
+        def descriptor = Stub(AuthenticatorDescriptor)
+        descriptor.getAcr() >> acr
+        descriptor.getDescription() >> acr
+        descriptor
+    }
+
+    private static def getResolver(factory, int cacheMaxEntries = 0)
+    {
+        new AuthenticatorBatchResolver(new AuthenticatorModelRegistry(factory, 300, 60), cacheMaxEntries, 300)
+    }
+}
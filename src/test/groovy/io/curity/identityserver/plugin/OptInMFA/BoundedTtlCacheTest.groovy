@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+import java.util.function.UnaryOperator
+
+class BoundedTtlCacheTest extends Specification {
+
+    def now = 0L
+    LongSupplier clock = { now } as LongSupplier
+
+    def "should return cached value and count hits and misses"()
+    {
+        given:
+        def cache = new BoundedTtlCache<String, String>(10, 1, TimeUnit.MINUTES, clock)
+
+        when:
+        cache.put("john", "email")
+
+        then:
+        cache.get("john") == "email"
+        cache.get("jane") == null
+        cache.hitCount == 1
+        cache.missCount == 1
+    }
+
+    def "should expire entries after the TTL"()
+    {
+        given:
+        def cache = new BoundedTtlCache<String, String>(10, 1, TimeUnit.MINUTES, clock)
+        cache.put("john", "email")
+
+        when:
+        now = TimeUnit.MINUTES.toNanos(1)
+
+        then:
+        cache.get("john") == null
+        cache.evictionCount == 1
+        cache.size() == 0
+    }
+
+    def "should update an entry from its current value without counting a hit or a miss"()
+    {
+        given:
+        def cache = new BoundedTtlCache<String, String>(10, 1, TimeUnit.MINUTES, clock)
+        cache.put("john", "email")
+
+        when:
+        cache.update("john", { it + ",sms" } as UnaryOperator)
+
+        then:
+        cache.get("john") == "email,sms"
+        cache.hitCount == 1
+        cache.missCount == 0
+
+        when:
+        now = TimeUnit.MINUTES.toNanos(1)
+        cache.update("john", { it == null ? "sms" : it + ",sms" } as UnaryOperator)
+
+        then:
+        cache.get("john") == "sms"
+    }
+
+    def "should evict least recently used entries when full"()
+    {
+        given:
+        def cache = new BoundedTtlCache<String, String>(1, 1, TimeUnit.MINUTES, clock)
+
+        when:
+        cache.put("john", "email")
+        cache.put("jane", "sms")
+
+        then:
+        cache.get("john") == null
+        cache.get("jane") == "sms"
+        cache.evictionCount == 1
+    }
+
+    def "should drop invalidated entries"()
+    {
+        given:
+        def cache = new BoundedTtlCache<String, String>(10, 1, TimeUnit.MINUTES, clock)
+        cache.put("john", "email")
+
+        when:
+        cache.invalidate("john")
+
+        then:
+        cache.get("john") == null
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+class FactorUsageStoreTest extends Specification {
+
+    def "should not count anything when factors are neither ordered by use nor chosen automatically"()
+    {
+        given:
+        def store = FactorUsageStore.create(new TestActionConfiguration(null, null, null))
+
+        when:
+        store.recordUse("john", "email")
+
+        then:
+        !store.enabled
+        store.getMostUsedAcr("john") == null
+        store.getMostUsedCount("john") == 0
+    }
+
+    def "should rank the factor used the most first"()
+    {
+        given:
+        def store = FactorUsageStore.create(configurationOrderingByUse())
+
+        when:
+        store.recordUse("john", "email")
+        store.recordUse("john", "sms")
+        store.recordUse("john", "sms")
+        store.recordUse("jane", "totp")
+
+        then:
+        store.getMostUsedAcr("john") == "sms"
+        store.getMostUsedCount("john") == 2
+        store.getMostUsedAcr("jane") == "totp"
+        store.size() == 2
+    }
+
+    def "should make room for a new factor by forgetting the least used one"()
+    {
+        given:
+        def store = FactorUsageStore.create(configurationOrderingByUse())
+        (1..8).each { factor -> (0..factor).each { store.recordUse("john", "factor-$factor".toString()) } }
+
+        when:
+        store.recordUse("john", "new")
+        (1..9).each { store.recordUse("john", "new") }
+
+        then:
+        store.getMostUsedAcr("john") == "new"
+        store.getMostUsedCount("john") == 10
+    }
+
+    private static def configurationOrderingByUse()
+    {
+        new TestActionConfiguration(null, null, null) {
+            @Override
+            OptInMFAAuthenticationActionConfig.FactorOrdering getFactorOrdering() {
+                return OptInMFAAuthenticationActionConfig.FactorOrdering.MOST_USED_FIRST
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+class IndexFileSecondFactorSourceTest extends Specification {
+
+    Path directory = Files.createTempDirectory("optinmfa")
+    Path indexFile = directory.resolve("second-factors.tsv")
+
+    def cleanup()
+    {
+        directory.toFile().deleteDir()
+    }
+
+    def "should find users anywhere in the file"()
+    {
+        given:
+        write("alice\tMy email\temail\n" +
+                "bob\tMy phone\tsms\tMy key\twebauthn\n" +
+                "bobby\tTötterström\ttotp\r\n" +
+                "carol\n" +
+                "dave\tMy email\temail")
+        def source = new IndexFileSecondFactorSource(indexFile, 0, "test")
+
+        expect:
+        source.size() == 5
+        source.getSecondFactors("alice") == ["My email": "email"]
+        source.getSecondFactors("bob") == ["My phone": "sms", "My key": "webauthn"]
+        source.getSecondFactors("bobby") == ["Tötterström": "totp"]
+        source.getSecondFactors("carol") == null
+        source.getSecondFactors("dave") == ["My email": "email"]
+        source.getSecondFactors("aaron") == null
+        source.getSecondFactors("bo") == null
+        source.getSecondFactors("zoe") == null
+    }
+
+    def "should find every user of a larger file"()
+    {
+        given:
+        def subjects = (1..1000).collect { "user-$it".toString() }.sort()
+        write(subjects.collect { "$it\tPhone of $it\tsms\n" }.join(""))
+        def source = new IndexFileSecondFactorSource(indexFile, 0, "test")
+
+        expect:
+        subjects.every { source.getSecondFactors(it) == ["Phone of $it".toString(): "sms"] }
+        source.getSecondFactors("user-1000a") == null
+    }
+
+    def "should use the new file once it has replaced the old one"()
+    {
+        given:
+        write("alice\tMy email\temail\n")
+        def source = new IndexFileSecondFactorSource(indexFile, 0, "test")
+
+        when:
+        replace("alice\tMy phone\tsms\nbob\tMy email\temail\n")
+        source.reloadIfChanged()
+
+        then:
+        source.getSecondFactors("alice") == ["My phone": "sms"]
+        source.getSecondFactors("bob") == ["My email": "email"]
+    }
+
+    def "should keep using the old file if the new one is not sorted"()
+    {
+        given:
+        write("alice\tMy email\temail\n")
+        def source = new IndexFileSecondFactorSource(indexFile, 0, "test")
+
+        when:
+        replace("bob\tMy email\temail\nalice\tMy phone\tsms\n")
+        source.reloadIfChanged()
+
+        then:
+        source.getSecondFactors("alice") == ["My email": "email"]
+        source.getSecondFactors("bob") == null
+    }
+
+    def "should have no users until the file exists"()
+    {
+        when:
+        def source = new IndexFileSecondFactorSource(indexFile, 0, "test")
+
+        then:
+        source.size() == 0
+        source.getSecondFactors("alice") == null
+
+        when:
+        write("alice\tMy email\temail\n")
+        source.reloadIfChanged()
+
+        then:
+        source.getSecondFactors("alice") == ["My email": "email"]
+    }
+
+    private void write(String content)
+    {
+        Files.write(indexFile, content.getBytes(StandardCharsets.UTF_8))
+    }
+
+    private void replace(String content)
+    {
+        def newFile = directory.resolve("second-factors.tsv.new")
+        Files.write(newFile, content.getBytes(StandardCharsets.UTF_8))
+        Files.move(newFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.ACCOUNT_LOOKUP
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.SESSION_READ
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.SESSION_WRITE
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.PROMPT
+
+class LoginTracerTest extends Specification {
+
+    def "should add what the action records on the request thread to the trace of the call"()
+    {
+        given:
+        def tracer = new LoginTracer(100, 16, null)
+        def metrics = OptInMFAMetrics.create(configurationTracing(100))
+
+        when:
+        def trace = tracer.start("transactionId")
+        metrics.record(SESSION_READ, metrics.startTimer())
+        metrics.record(ACCOUNT_LOOKUP, metrics.startTimer() - 1_000_000)
+        metrics.record(SESSION_WRITE, metrics.startTimer())
+        metrics.record(PROMPT)
+        tracer.finish(trace)
+        metrics.record(SESSION_READ, metrics.startTimer())
+
+        then:
+        LoginTrace.current() == null
+        def logged = tracer.poll()
+        logged.is(trace)
+        logged.transactionId == "transactionId"
+        logged.outcome == PROMPT
+        logged.sessionOperations == 2
+        logged.accountLookupNanos >= 1_000_000
+        logged.toString().contains("branch=prompt")
+    }
+
+    def "should trace all calls of a transaction or none"()
+    {
+        given:
+        def tracer = new LoginTracer(50, 1000, null)
+        def transactionIds = (1..200).collect { UUID.randomUUID().toString() }
+
+        when:
+        def traced = transactionIds.findAll { transactionId ->
+            def trace = tracer.start(transactionId)
+
+            if (trace != null)
+            {
+                tracer.finish(trace)
+            }
+
+            trace != null
+        }
+        def tracedAgain = transactionIds.findAll { transactionId ->
+            def trace = tracer.start(transactionId)
+
+            if (trace != null)
+            {
+                tracer.finish(trace)
+            }
+
+            trace != null
+        }
+
+        then:
+        traced == tracedAgain
+        !traced.isEmpty()
+        traced.size() < transactionIds.size()
+    }
+
+    def "should drop traces instead of waiting when the buffer is full"()
+    {
+        given:
+        def tracer = new LoginTracer(100, 2, null)
+
+        when:
+        3.times { tracer.finish(tracer.start("transactionId")) }
+
+        then:
+        tracer.size() == 2
+        tracer.droppedCount == 1
+    }
+
+    def "should not trace when tracing is disabled"()
+    {
+        expect:
+        LoginTracer.create(configurationTracing(0)) == null
+    }
+
+    private static def configurationTracing(int samplingPercentage)
+    {
+        new TestActionConfiguration(null, null, null) {
+            @Override
+            int getTraceSamplingPercentage() {
+                return samplingPercentage
+            }
+        }
+    }
+}
@@ -18,8 +18,10 @@ package io.curity.identityserver.plugin.OptInMFA
 import se.curity.identityserver.sdk.NonEmptyList
 import se.curity.identityserver.sdk.attribute.AccountAttributes
 import se.curity.identityserver.sdk.attribute.Attribute
+import se.curity.identityserver.sdk.attribute.Attributes
 import se.curity.identityserver.sdk.attribute.AuthenticationAttributes
 import se.curity.identityserver.sdk.attribute.ContextAttributes
+import se.curity.identityserver.sdk.attribute.MapAttributeValue
 import se.curity.identityserver.sdk.authentication.AuthenticatedSessions
 import se.curity.identityserver.sdk.authenticationaction.AuthenticationActionResult
 import se.curity.identityserver.sdk.authenticationaction.completions.RequiredActionCompletion
@@ -33,6 +35,8 @@ import spock.lang.Specification
 
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.REFRESH_SECOND_FACTORS_ATTRIBUTE
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAState.STATE_ATTRIBUTE
 
 final class OptInMFAAuthenticationActionTest extends Specification {
 
@@ -56,7 +60,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def accountManager = getAccountManagerStubReturningUser(user)
 
         def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         when:
         def result = action.apply(authenticationAttributes, null, "transactionId", null)
@@ -74,7 +78,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def accountManager = getAccountManagerStubReturningUser(user)
 
         def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
         when:
@@ -98,7 +102,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
 
         def configuration = new TestActionConfiguration(accountManager, descriptorFactory, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         when:
         def result = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
@@ -123,7 +127,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def descriptorFactory = authenticatorDescriptorFactoryStubThrowingError("someValue")
 
         def configuration = new TestActionConfiguration(accountManager, descriptorFactory, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
 
@@ -145,7 +149,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def authenticatedSessions = authenticatedSessionsStubWithSession("email")
 
         def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         when:
         def result = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
@@ -165,7 +169,7 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         def authenticatedSessions = authenticatedSessionsStubWithSession("email")
 
         def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
-        def action = new OptInMFAAuthenticationAction(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
 
         when:
         def result = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
@@ -174,26 +178,485 @@ final class OptInMFAAuthenticationActionTest extends Specification {
         result instanceof AuthenticationActionResult.SuccessAuthenticationActionResult
     }
 
-    private def getSessionManagerStubWithoutChosenSecondFactor()
+    def "should read the chosen factor from the state in a single session read"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def authenticatedSessions = authenticatedSessionsStubWithSession("email")
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        def result = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+
+        then:
+        result instanceof AuthenticationActionResult.SuccessAuthenticationActionResult
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.chosen("email").toAttribute()
+        0 * sessionManager.get(_)
+        1 * sessionManager.remove(STATE_ATTRIBUTE)
+    }
+
+    def "should read the chosen factor written by an earlier version only while legacy session state is supported"()
     {
-        getSessionManagerStub(false, null)
+        given:
+        def sessionManager = Mock(SessionManager)
+        sessionManager.get(CHOSEN_SECOND_FACTOR_ATTRIBUTE) >> Attribute.of(CHOSEN_SECOND_FACTOR_ATTRIBUTE, "email")
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isLegacySessionStateSupported() {
+                return supported
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        def result = action.apply(authenticationAttributes, authenticatedSessionsStubWithSession("email"),
+                "transactionId", null)
+
+        then:
+        result instanceof AuthenticationActionResult.SuccessAuthenticationActionResult
+        legacyReads * sessionManager.get(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE) >> Attribute.ofFlag(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE)
+        legacyReads * sessionManager.remove(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE)
+
+        where:
+        supported | legacyReads
+        true      | 1
+        false     | 0
     }
 
-    private def getSessionManagerStubWithChosenSecondFactor(String chosenFactor)
+    def "should keep the available factors in the state when prompting the user"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+
+        def user = getUserAttributes(["My email": "email"])
+        def accountManager = getAccountManagerStubReturningUser(user)
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        1 * sessionManager.put({ it.getName().getValue() == STATE_ATTRIBUTE
+            def state = OptInMFAState.fromAttribute(it)
+            state.phase == OptInMFAState.Phase.PROMPTING && state.secondFactors == ["My email": "email"] })
+    }
+
+    def "should keep only the digest of the available factors in the state when configured to"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            OptInMFAAuthenticationActionConfig.SecondFactorsEncoding getSessionSecondFactorsEncoding() {
+                return OptInMFAAuthenticationActionConfig.SecondFactorsEncoding.DIGEST
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        1 * sessionManager.put({
+            def state = OptInMFAState.fromAttribute(it)
+            state.secondFactors.isEmpty() && state.secondFactorsDigest == FactorSetDigest.of(["My email": "email"]) &&
+                    OfferedAcrs.contains(state.offeredAcrs, "email") })
+    }
+
+    def "should not look up the account again when the user's second factors are cached"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+
+        def user = getUserAttributes(["My email": "email"])
+        def accountManager = Mock(AccountManager)
+
+        def configuration = getConfigurationWithSecondFactorsCache(accountManager, sessionManager)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
+
+        when:
+        def firstResult = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+        def secondResult = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+
+        then:
+        1 * accountManager.getByUserName(username) >> user
+        firstResult instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+        secondResult instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+    }
+
+    def "should bypass the cached second factors when asked to refresh them"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+
+        def user = getUserAttributes(["My email": "email"])
+        def accountManager = Mock(AccountManager)
+
+        def configuration = getConfigurationWithSecondFactorsCache(accountManager, sessionManager)
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
+        def refreshingAttributes = AuthenticationAttributes.of(username,
+                ContextAttributes.of(Attributes.of(Attribute.ofFlag(REFRESH_SECOND_FACTORS_ATTRIBUTE))))
+
+        when:
+        action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+        action.apply(refreshingAttributes, authenticatedSessions, "transactionId", null)
+
+        then:
+        2 * accountManager.getByUserName(username) >> user
+    }
+
+    def "should look up the account again when the version of the user's second factors has changed"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = Mock(AccountManager)
+
+        def configuration = getConfigurationWithSecondFactorsVersion(accountManager, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+
+        def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
+        def firstVersion = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactorsVersion", "1"))))
+        def secondVersion = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactorsVersion", "2"))))
+
+        when:
+        action.apply(firstVersion, authenticatedSessions, "transactionId", null)
+        action.apply(firstVersion, authenticatedSessions, "transactionId", null)
+        action.apply(secondVersion, authenticatedSessions, "transactionId", null)
+        action.apply(secondVersion, authenticatedSessions, "transactionId", null)
+
+        then:
+        2 * accountManager.getByUserName(username) >> getUserAttributes(["My email": "email"])
+        managedObject.secondFactorsCache.staleCount == 1
+    }
+
+    def "should keep the version of the cached second factors when they are looked up again without it"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = getConfigurationWithSecondFactorsVersion(accountManager, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+        def firstVersion = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactorsVersion", "1"))))
+
+        when:
+        action.apply(firstVersion, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+        new SecondFactorsLookup(managedObject).lookUp(username, true)
+
+        then:
+        managedObject.secondFactorsCache.get(username, "1") == ["My email": "email"]
+        managedObject.secondFactorsCache.staleCount == 0
+    }
+
+    def "should not cache the last known second factors as the current version"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = Mock(AccountManager)
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isSecondFactorsCacheEnabled() {
+                return true
+            }
+
+            @Override
+            Optional<String> getSecondFactorsVersionAttribute() {
+                return Optional.of("secondFactorsVersion")
+            }
+
+            @Override
+            boolean isAccountLookupGuardEnabled() {
+                return true
+            }
+
+            @Override
+            OptInMFAAuthenticationActionConfig.AccountLookupFallback getAccountLookupFallback() {
+                return OptInMFAAuthenticationActionConfig.AccountLookupFallback.LAST_KNOWN_FACTORS
+            }
+        }
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+
+        def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
+        def firstVersion = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactorsVersion", "1"))))
+        def secondVersion = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactorsVersion", "2"))))
+
+        when:
+        action.apply(firstVersion, authenticatedSessions, "transactionId", null)
+
+        then:
+        1 * accountManager.getByUserName(username) >> getUserAttributes(["My email": "email"])
+
+        when:
+        def firstFallbackResult = action.apply(secondVersion, authenticatedSessions, "transactionId", null)
+        def secondFallbackResult = action.apply(secondVersion, authenticatedSessions, "transactionId", null)
+
+        then:
+        2 * accountManager.getByUserName(username) >> { throw new IllegalStateException("The account store is down") }
+        firstFallbackResult instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+        secondFallbackResult instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+        managedObject.accountLookupGuard.fallbackCount == 2
+        managedObject.secondFactorsCache.get(username, "2") == null
+    }
+
+    def "should use the second factors already put in the attributes instead of looking up the account"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = Mock(AccountManager)
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            Optional<String> getPrefetchedSecondFactorsAttribute() {
+                return Optional.of("secondFactors")
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        def prefetchedAttributes = AuthenticationAttributes.of(username, ContextAttributes.of(Attributes.of(
+                Attribute.of("secondFactors", MapAttributeValue.of(["My email": "email"])))))
+
+        when:
+        def prefetchedResult = action.apply(prefetchedAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+        action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        prefetchedResult instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+        2 * sessionManager.put({ OptInMFAState.fromAttribute(it).secondFactors == ["My email": "email"] })
+        1 * accountManager.getByUserName(username) >> getUserAttributes(["My email": "email"])
+    }
+
+    def "should fail without touching the session once the user exceeds the rate limit"()
     {
-        getSessionManagerStub(true, Attribute.of(CHOSEN_SECOND_FACTOR_ATTRIBUTE, chosenFactor))
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isRateLimitingEnabled() {
+                return true
+            }
+
+            @Override
+            int getSubjectRateLimitBurst() {
+                return 1
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+        action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        when:
+        def result = action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        result instanceof AuthenticationActionResult.FailedAuthenticationActionResult
+        0 * sessionManager._
+    }
+
+    def "should not count a request rejected for its transaction against the user"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isRateLimitingEnabled() {
+                return true
+            }
+
+            @Override
+            int getSubjectRateLimitBurst() {
+                return 2
+            }
+
+            @Override
+            int getTransactionRateLimitBurst() {
+                return 1
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+        def authenticatedSessions = authenticatedSessionsStubWithoutSessions()
+
+        when:
+        def first = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+        def sameTransaction = action.apply(authenticationAttributes, authenticatedSessions, "transactionId", null)
+        def otherTransaction = action.apply(authenticationAttributes, authenticatedSessions, "otherTransactionId", null)
+
+        then:
+        first instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
+        sameTransaction instanceof AuthenticationActionResult.FailedAuthenticationActionResult
+        otherTransaction instanceof AuthenticationActionResult.PendingCompletionAuthenticationActionResult
     }
 
-    private def getSessionManagerStub(isSecondFactorChosen, secondFactor)
+    def "should authenticate without prompting a user who has a single factor"()
     {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(factors))
+
+        def descriptorFactory = Stub(AuthenticatorDescriptorFactory)
+        descriptorFactory.getAuthenticatorDescriptors("email") >> NonEmptyList.of(authenticator)
+        descriptorFactory.getAuthenticatorDescriptors("sms") >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        descriptorFactory.getAuthenticatorDescriptors(_) >> { throw new AuthenticatorNotConfiguredException("Not configured") }
+
+        def configuration = new TestActionConfiguration(accountManager, descriptorFactory, sessionManager) {
+            @Override
+            boolean isPromptSkippedForSingleFactor() {
+                return true
+            }
+        }
+        def action = new OptInMFAAuthenticationAction(configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        def result = action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        expectedObligation.isInstance(result.obligation)
+
+        where:
+        factors                                         | expectedObligation
+        ["My email": "email"]                           | RequiredActionCompletion.AuthenticateUser
+        ["My email": "email", "Work email": "email"]    | RequiredActionCompletion.AuthenticateUser
+        ["My email": "email", "Old phone": "removed"]   | RequiredActionCompletion.AuthenticateUser
+        ["My email": "email", "My phone": "sms"]        | RequiredActionCompletion.PromptUser
+    }
+
+    def "should authenticate with the most used factor once the user has used it often enough"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithoutChosenSecondFactor()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email", "My phone": "sms"]))
+        def descriptorFactory = authenticatorDescriptorFactoryStubReturningDescriptor("email")
+
+        def configuration = new TestActionConfiguration(accountManager, descriptorFactory, sessionManager) {
+            @Override
+            int getAutoSelectFactorAfterUses() {
+                return 2
+            }
+        }
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+        managedObject.factorUsageStore.recordUse(username, "email")
+
+        when:
+        def prompted = action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+        managedObject.factorUsageStore.recordUse(username, "email")
+        def autoSelected = action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        prompted.obligation instanceof RequiredActionCompletion.PromptUser
+        autoSelected.obligation instanceof RequiredActionCompletion.AuthenticateUser
+        autoSelected.obligation.authenticatorDescriptor.acr == "email"
+    }
+
+    def "should show the list to a user who comes back without using the factor chosen for them"()
+    {
+        given:
         def sessionManager = Mock(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.autoSelected("email").toAttribute()
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email", "My phone": "sms"]))
+        def descriptorFactory = authenticatorDescriptorFactoryStubReturningDescriptor("email")
 
-        if (isSecondFactorChosen) {
-            sessionManager.get(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE) >> Attribute.ofFlag(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE)
-            sessionManager.get(CHOSEN_SECOND_FACTOR_ATTRIBUTE) >> secondFactor
-        } else {
-            sessionManager.get(IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE) >> null
+        def configuration = new TestActionConfiguration(accountManager, descriptorFactory, sessionManager) {
+            @Override
+            int getAutoSelectFactorAfterUses() {
+                return 1
+            }
         }
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+        managedObject.factorUsageStore.recordUse(username, "email")
+
+        when:
+        def result = action.apply(authenticationAttributes, authenticatedSessionsStubWithoutSessions(), "transactionId", null)
+
+        then:
+        result.obligation instanceof RequiredActionCompletion.PromptUser
+        1 * sessionManager.put({ OptInMFAState.fromAttribute(it).phase == OptInMFAState.Phase.PROMPTING })
+        managedObject.factorUsageStore.getMostUsedAcr(username) == null
+    }
+
+    def "should count the factor the user completed the login with"()
+    {
+        given:
+        def sessionManager = getSessionManagerStubWithChosenSecondFactor("email")
+        def accountManager = getAccountManagerStubReturningUser(getUserAttributes(["My email": "email"]))
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            OptInMFAAuthenticationActionConfig.FactorOrdering getFactorOrdering() {
+                return OptInMFAAuthenticationActionConfig.FactorOrdering.MOST_USED_FIRST
+            }
+        }
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def action = new OptInMFAAuthenticationAction(configuration, managedObject)
+
+        when:
+        action.apply(authenticationAttributes, authenticatedSessionsStubWithSession("email"), "transactionId", null)
+
+        then:
+        managedObject.factorUsageStore.getMostUsedAcr(username) == "email"
+        managedObject.factorUsageStore.getMostUsedCount(username) == 1
+    }
+
+    private static def getConfigurationWithSecondFactorsCache(accountManager, sessionManager)
+    {
+        new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isSecondFactorsCacheEnabled() {
+                return true
+            }
+        }
+    }
+
+    private static def getConfigurationWithSecondFactorsVersion(accountManager, sessionManager)
+    {
+        new TestActionConfiguration(accountManager, null, sessionManager) {
+            @Override
+            boolean isSecondFactorsCacheEnabled() {
+                return true
+            }
+
+            @Override
+            Optional<String> getSecondFactorsVersionAttribute() {
+                return Optional.of("secondFactorsVersion")
+            }
+        }
+    }
+
+    private def getSessionManagerStubWithoutChosenSecondFactor()
+    {
+        Mock(SessionManager)
+    }
+
+    private def getSessionManagerStubWithChosenSecondFactor(String chosenFactor)
+    {
+        def sessionManager = Mock(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.chosen(chosenFactor).toAttribute()
 
         sessionManager
     }
@@ -15,6 +15,7 @@
  */
 package io.curity.identityserver.plugin.OptInMFA
 
+import se.curity.identityserver.sdk.service.AccountManager
 import se.curity.identityserver.sdk.service.SessionManager
 import se.curity.identityserver.sdk.web.Request
 import se.curity.identityserver.sdk.web.Response
@@ -24,30 +25,121 @@ import spock.lang.Specification
 
 import java.time.Duration
 
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAState.STATE_ATTRIBUTE
 
 class OptInMFAChooseFactorHandlerTest extends Specification {
 
     def configuration = new TestActionConfiguration(null, null, null)
 
-    def "should throw exception when secondFactor parameter missing in request"()
+    def "should reject a request without a single secondFactor parameter without touching the session"()
     {
         given:
+        def sessionManager = Mock(SessionManager)
+
         def request = Stub(Request)
-        request.getFormParameterValueOrError("secondFactor") >> null
+        request.getFormParameterValueOrError("secondFactor") >> secondFactorParameter
+        def requestModel = new ChooseFactorPostRequestModel(request)
+
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        handler.post(requestModel, Stub(Response))
+
+        then:
+        !requestModel.valid
+        def e = thrown(MissingSecondFactorParameterException)
+        e.stackTrace.length == 0
+        0 * sessionManager._
+
+        where:
+        secondFactorParameter << [
+                null,
+                "",
+                // As the server answers a parameter sent more than once
+                { throw new IllegalArgumentException("secondFactor is repeated") }
+        ]
+    }
+
+    def "should reject a factor the user was not offered before writing to the session"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.prompting("john", ["My email": "email1"]).toAttribute()
+
+        def request = Stub(Request)
+        request.getFormParameterValueOrError("secondFactor") >> "weak-factor"
+        def requestModel = new ChooseFactorPostRequestModel(request)
+
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
 
         when:
-        new ChooseFactorPostRequestModel(request)
+        handler.post(requestModel, Stub(Response))
 
         then:
-        thrown MissingSecondFactorParameterException
+        thrown SecondFactorsInvalidException
+        0 * sessionManager.put(_)
+    }
+
+    def "should check the choice against the offered ACRs in the state without looking up the factors"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.promptingWithDigest("john",
+                ["My email": "email1", "Work email": "email1", "My phone": "sms1"]).toAttribute()
+        def accountManager = Mock(AccountManager)
+
+        def request = Stub(Request)
+        request.getFormParameterValueOrError("secondFactor") >> chosenAcr
+        request.getFormParameterValueOrError("rememberChoice") >> null
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
+        def accepted = true
+
+        when:
+        try {
+            handler.post(new ChooseFactorPostRequestModel(request), Stub(Response))
+        } catch (SecondFactorsInvalidException ignored) {
+            accepted = false
+        }
+
+        then:
+        accepted == offered
+        0 * accountManager._
+        (offered ? 1 : 0) * sessionManager.put(_)
+
+        where:
+        chosenAcr | offered
+        "email1"  | true
+        "sms1"    | true
+        "email"   | false
+        "sms1 "   | false
+    }
+
+    def "should reject a choice when no user is being prompted"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+
+        def request = Stub(Request)
+        request.getFormParameterValueOrError("secondFactor") >> "email1"
+        def requestModel = new ChooseFactorPostRequestModel(request)
+
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        handler.post(requestModel, Stub(Response))
+
+        then:
+        thrown SecondFactorsInvalidException
+        0 * sessionManager.put(_)
     }
 
     def "should set session variables and not set cookie when option in form not set"()
     {
         given:
         def sessionManager = Mock(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.prompting("john", ["My email": "email1"]).toAttribute()
 
         def cookieJar = Mock(ResponseCookies)
         def response = Stub(Response)
@@ -58,14 +150,15 @@ class OptInMFAChooseFactorHandlerTest extends Specification {
         request.getFormParameterValueOrError("rememberChoice") >> null
         def requestModel = new ChooseFactorPostRequestModel(request)
 
-        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration)
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
 
         when:
         handler.post(requestModel, response)
 
         then:
-        1 * sessionManager.put({ it.getValue().toString() == "email1"; it.getName().getValue() == CHOSEN_SECOND_FACTOR_ATTRIBUTE })
-        1 * sessionManager.put({ it.getName().getValue() == IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE; it.getValue() == [] as Collection })
+        1 * sessionManager.put({ it.getName().getValue() == STATE_ATTRIBUTE
+            def state = OptInMFAState.fromAttribute(it)
+            state.phase == OptInMFAState.Phase.CHOSEN && state.chosenAcr == "email1" })
         0 * cookieJar.add(_)
     }
 
@@ -73,21 +166,54 @@ class OptInMFAChooseFactorHandlerTest extends Specification {
     {
         given:
         def sessionManager = Stub(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.prompting("john", ["My email": "email1"]).toAttribute()
 
         def cookieJar = Mock(ResponseCookies)
         def response = Stub(Response)
         response.cookies() >> cookieJar
 
         def request = Stub(Request)
+        request.getFormParameterValueOrError("secondFactor") >> "email1"
         request.getParameterValueOrError("rememberChoice") >> "on"
         def requestModel = new ChooseFactorPostRequestModel(request)
 
-        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, managedObject)
+        long now = System.currentTimeMillis().intdiv(1000)
 
         when:
         handler.post(requestModel, response)
 
         then:
-        1 * cookieJar.add({ StandardResponseCookie cookie -> cookie.maxAge.get() == Duration.ofDays(30); })
+        1 * cookieJar.add({ StandardResponseCookie cookie ->
+            cookie.maxAge.get() == Duration.ofDays(30) &&
+                    managedObject.rememberChoiceCookieCodec.verify(cookie.value, "john", now) == "email1" })
+    }
+
+    def "should not set rememberChoice cookie if the user being prompted is not known"()
+    {
+        given:
+        def sessionManager = Stub(SessionManager)
+        // As written for a prompt started by an earlier version, which did not keep the subject
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.legacy(OptInMFAState.Phase.PROMPTING, null,
+                ["My email": "email1"]).toAttribute()
+
+        def cookieJar = Mock(ResponseCookies)
+        def response = Stub(Response)
+        response.cookies() >> cookieJar
+
+        def request = Stub(Request)
+        request.getFormParameterValueOrError("secondFactor") >> "email1"
+        request.getParameterValueOrError("rememberChoice") >> "on"
+        def requestModel = new ChooseFactorPostRequestModel(request)
+
+        def handler = new OptInMFAChooseFactorHandler(sessionManager, null, configuration, new OptInMFAManagedObject(configuration))
+
+        when:
+        def result = handler.post(requestModel, response)
+
+        then:
+        result.isPresent()
+        0 * cookieJar.add(_)
     }
 }
@@ -0,0 +1,63 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Operation.ACCOUNT_LOOKUP
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAMetrics.Outcome.PROMPT
+
+class OptInMFAMetricsTest extends Specification {
+
+    def "should not record anything when metrics are disabled"()
+    {
+        given:
+        def metrics = OptInMFAMetrics.disabled()
+
+        when:
+        metrics.record(PROMPT)
+        metrics.record(ACCOUNT_LOOKUP, metrics.startTimer())
+
+        then:
+        metrics.getOutcomeCount(PROMPT) == 0
+        metrics.getOperationCount(ACCOUNT_LOOKUP) == 0
+    }
+
+    def "should export recorded outcomes and latencies in the Prometheus text format"()
+    {
+        given:
+        def configuration = new TestActionConfiguration(null, null, null) {
+            @Override
+            boolean isMetricsEnabled() {
+                return true
+            }
+        }
+        def metrics = OptInMFAMetrics.create(configuration)
+        metrics.registerCounter("logins_total", "Logins.", { 7L })
+
+        when:
+        metrics.record(PROMPT)
+        metrics.record(ACCOUNT_LOOKUP, metrics.startTimer())
+        def text = metrics.toPrometheusText()
+
+        then:
+        text.contains('optinmfa_outcomes_total{outcome="prompt"} 1\n')
+        text.contains('optinmfa_operation_duration_seconds_bucket{operation="account-lookup",le="+Inf"} 1\n')
+        text.contains('optinmfa_operation_duration_seconds_count{operation="account-lookup"} 1\n')
+        text.contains('# TYPE optinmfa_logins_total counter\n')
+        text.contains('optinmfa_logins_total 7\n')
+    }
+}
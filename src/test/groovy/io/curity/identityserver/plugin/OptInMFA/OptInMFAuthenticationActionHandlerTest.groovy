@@ -16,10 +16,13 @@
 package io.curity.identityserver.plugin.OptInMFA
 
 import se.curity.identityserver.sdk.NonEmptyList
+import se.curity.identityserver.sdk.attribute.AccountAttributes
 import se.curity.identityserver.sdk.attribute.Attribute
 import se.curity.identityserver.sdk.attribute.MapAttributeValue
 import se.curity.identityserver.sdk.authenticationaction.completions.ActionCompletionResult
 import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException
+import se.curity.identityserver.sdk.errors.ErrorCode
+import se.curity.identityserver.sdk.service.AccountManager
 import se.curity.identityserver.sdk.service.ExceptionFactory
 import se.curity.identityserver.sdk.service.SessionManager
 import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor
@@ -32,9 +35,8 @@ import spock.lang.Shared
 import spock.lang.Specification
 
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.AVAILABLE_SECOND_FACTORS_ATTRIBUTE
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.CHOSEN_SECOND_FACTOR_ATTRIBUTE
-import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE
 import static io.curity.identityserver.plugin.OptInMFA.OptInMFAAuthenticationAction.REMEMBER_CHOICE_COOKIE_NAME
+import static io.curity.identityserver.plugin.OptInMFA.OptInMFAState.STATE_ATTRIBUTE
 
 class OptInMFAuthenticationActionHandlerTest extends Specification {
 
@@ -42,16 +44,14 @@ class OptInMFAuthenticationActionHandlerTest extends Specification {
     def configuration = new TestActionConfiguration(null, null, null)
 
     def setupSpec() {
-        sessionManager.remove(AVAILABLE_SECOND_FACTORS_ATTRIBUTE) >> Attribute.of(
-                AVAILABLE_SECOND_FACTORS_ATTRIBUTE,
-                MapAttributeValue.of(["My email": "email1", "My sms": "sms1"]))
+        sessionManager.get(STATE_ATTRIBUTE) >> promptingJohn()
     }
 
     def "should not allow POST requests"()
     {
         given:
         def exceptionFactory = Mock(ExceptionFactory)
-        def handler = new OptInMFAuthenticationActionHandler(null, null, null, exceptionFactory)
+        def handler = new OptInMFAuthenticationActionHandler(null, configuration, exceptionFactory, new OptInMFAManagedObject(configuration))
 
         when:
         handler.post(null, null)
@@ -65,7 +65,7 @@ class OptInMFAuthenticationActionHandlerTest extends Specification {
     {
         given:
         def factory = Mock(AuthenticatorDescriptorFactory)
-        def handler = new OptInMFAuthenticationActionHandler(factory, sessionManager, configuration, null)
+        def handler = getHandler(factory, sessionManager)
 
         def response = Mock(Response)
 
@@ -89,7 +89,7 @@ class OptInMFAuthenticationActionHandlerTest extends Specification {
     {
         given:
         def factory = Mock(AuthenticatorDescriptorFactory)
-        def handler = new OptInMFAuthenticationActionHandler(factory, sessionManager, configuration, null)
+        def handler = getHandler(factory, sessionManager)
 
         def response = Mock(Response)
 
@@ -116,21 +116,14 @@ class OptInMFAuthenticationActionHandlerTest extends Specification {
     {
         given:
         def sessionManager = Mock(SessionManager)
-        sessionManager.remove(AVAILABLE_SECOND_FACTORS_ATTRIBUTE) >> Attribute.of(
-                AVAILABLE_SECOND_FACTORS_ATTRIBUTE,
-                MapAttributeValue.of(["My email": "email1", "My sms": "sms1"]))
         def factory = Mock(AuthenticatorDescriptorFactory)
-        def handler = new OptInMFAuthenticationActionHandler(factory, sessionManager, configuration, null)
+        def configuration = new TestActionConfiguration(null, factory, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, managedObject)
 
         def response = Mock(Response)
-
-        def request = Stub(Request)
-        def cookieJar = Stub(RequestCookies)
-        def cookie = Stub(Cookie)
-        cookie.getValue() >> "email1"
-
-        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> cookie
-        request.getCookies() >> cookieJar
+        def request = getRequestWithRememberChoiceCookie(managedObject.rememberChoiceCookieCodec
+                .encode("john", "email1", inOneHour()))
 
         def authenticatorList = NonEmptyList.of(Stub(AuthenticatorDescriptor))
 
@@ -142,42 +135,317 @@ class OptInMFAuthenticationActionHandlerTest extends Specification {
         def actionResult = result.get()
         actionResult instanceof ActionCompletionResult.CompletedActionCompletionResult
 
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> promptingJohn()
         1 * factory.getAuthenticatorDescriptors("email1") >> authenticatorList
-        1 * factory.getAuthenticatorDescriptors("sms1") >> authenticatorList
+        0 * factory.getAuthenticatorDescriptors("sms1")
 
-        1 * sessionManager.put({ it.getName().getValue() == CHOSEN_SECOND_FACTOR_ATTRIBUTE
-            it.getValue().toString() == "email1" })
-        1 * sessionManager.put({ it.getName().getValue() == IS_SECOND_FACTOR_CHOSEN_ATTRIBUTE
-            it.getValue() == [] as Collection })
+        1 * sessionManager.put({ it.getName().getValue() == STATE_ATTRIBUTE
+            def state = OptInMFAState.fromAttribute(it)
+            state.phase == OptInMFAState.Phase.CHOSEN && state.chosenAcr == "email1" })
         0 * response.putViewData("authenticators", _, _)
     }
 
     def "should display screen if rememberChoice cookie set but authenticator not available any more"()
     {
         given:
+        def sessionManager = Stub(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> promptingJohn()
         def factory = Mock(AuthenticatorDescriptorFactory)
-        def handler = new OptInMFAuthenticationActionHandler(factory, sessionManager, configuration, null)
+        def configuration = new TestActionConfiguration(null, factory, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, managedObject)
 
         def response = Mock(Response)
+        def request = getRequestWithRememberChoiceCookie(managedObject.rememberChoiceCookieCodec
+                .encode("john", "email1", inOneHour()))
+
+        def authenticatorList = NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        when:
+        def result = handler.get(request, response)
+
+        then:
+        !result.isPresent()
+
+        1 * factory.getAuthenticatorDescriptors("email1") >> { throw new AuthenticatorNotConfiguredException("") }
+        1 * factory.getAuthenticatorDescriptors("sms1") >> authenticatorList
+
+        1 * response.putViewData("authenticators", { it.size() == 1 }, _)
+    }
+
+    def "should display screen if rememberChoice cookie is not signed"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        def handler = getHandler(factory, sessionManager)
+
+        def response = Mock(Response)
+        def request = getRequestWithRememberChoiceCookie("email1")
+
+        when:
+        def result = handler.get(request, response)
+
+        then:
+        !result.isPresent()
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> promptingJohn()
+        0 * sessionManager.put(_)
+        1 * response.putViewData("authenticators", { it.size() == 2 }, _)
+    }
+
+    def "should display screen if rememberChoice cookie was issued to another user"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        def configuration = new TestActionConfiguration(null, factory, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, managedObject)
+
+        def response = Mock(Response)
+        def request = getRequestWithRememberChoiceCookie(managedObject.rememberChoiceCookieCodec
+                .encode("jane", "email1", inOneHour()))
+
+        when:
+        def result = handler.get(request, response)
+
+        then:
+        !result.isPresent()
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> promptingJohn()
+        0 * sessionManager.put(_)
+        1 * response.putViewData("authenticators", { it.size() == 2 }, _)
+    }
+
+    def "should not look up an authenticator which is not present in system again on the next render"()
+    {
+        given:
+        def factory = Mock(AuthenticatorDescriptorFactory)
+        def handler = getHandler(factory, sessionManager)
 
         def request = Stub(Request)
         def cookieJar = Stub(RequestCookies)
-        def cookie = Stub(Cookie)
-        cookie.getValue() >> "email1"
+        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> null
+        request.getCookies() >> cookieJar
 
-        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> cookie
+        def authenticatorList = NonEmptyList.of(Stub(AuthenticatorDescriptor))
+
+        when:
+        handler.get(request, Mock(Response))
+        handler.get(request, Mock(Response))
+
+        then:
+        1 * factory.getAuthenticatorDescriptors("email1") >> authenticatorList
+        1 * factory.getAuthenticatorDescriptors("sms1") >> { throw new AuthenticatorNotConfiguredException("") }
+    }
+
+    def "should read the factors from the state written by the action"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def factory = Mock(AuthenticatorDescriptorFactory)
+        def handler = getHandler(factory, sessionManager)
+
+        def response = Mock(Response)
+
+        def request = Stub(Request)
+        def cookieJar = Stub(RequestCookies)
+        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> null
         request.getCookies() >> cookieJar
 
         def authenticatorList = NonEmptyList.of(Stub(AuthenticatorDescriptor))
+
         when:
         def result = handler.get(request, response)
 
         then:
         !result.isPresent()
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.prompting("john", ["My email": "email1"]).toAttribute()
+        0 * sessionManager.remove(_)
+        1 * factory.getAuthenticatorDescriptors("email1") >> authenticatorList
+        1 * response.putViewData("authenticators", { it.size() == 1 }, _)
+    }
 
-        1 * factory.getAuthenticatorDescriptors("email1") >> { throw new AuthenticatorNotConfiguredException("") }
-        1 * factory.getAuthenticatorDescriptors("sms1") >> authenticatorList
+    def "should look up the factors again when the state only holds their digest"()
+    {
+        given:
+        def sessionManager = Stub(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.promptingWithDigest("john",
+                ["My email": "email1", "My sms": "sms1"]).toAttribute()
 
-        1 * response.putViewData("authenticators", { it.size() == 1 }, _)
+        def accountManager = Stub(AccountManager)
+        accountManager.getByUserName("john") >> AccountAttributes.fromMap(
+                ["id": "1234", "subject": "john", "secondFactors": ["My sms": "sms1", "My email": "email1"]])
+
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+
+        def configuration = new TestActionConfiguration(accountManager, factory, sessionManager)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, new OptInMFAManagedObject(configuration))
+        def response = Mock(Response)
+
+        when:
+        handler.get(getRequestWithoutCookie(), response)
+
+        then:
+        1 * response.putViewData("authenticators", { it.size() == 2 }, _)
+    }
+
+    def "should continue with the remembered choice when the state only holds the digest of the factors"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def accountManager = Stub(AccountManager)
+        accountManager.getByUserName("john") >> AccountAttributes.fromMap(
+                ["id": "1234", "subject": "john", "secondFactors": ["My sms": "sms1", "My email": "email1"]])
+
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+
+        def configuration = new TestActionConfiguration(accountManager, factory, sessionManager)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, managedObject)
+
+        def response = Mock(Response)
+        def request = getRequestWithRememberChoiceCookie(managedObject.rememberChoiceCookieCodec
+                .encode("john", "email1", inOneHour()))
+
+        when:
+        def result = handler.get(request, response)
+
+        then:
+        result.isPresent()
+        result.get() instanceof ActionCompletionResult.CompletedActionCompletionResult
+
+        1 * sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.promptingWithDigest("john",
+                ["My email": "email1", "My sms": "sms1"]).toAttribute()
+        1 * sessionManager.put({ def state = OptInMFAState.fromAttribute(it)
+            state.phase == OptInMFAState.Phase.CHOSEN && state.chosenAcr == "email1" })
+        0 * response.putViewData("authenticators", _, _)
+    }
+
+    def "should not show factors which no longer match the digest in the state"()
+    {
+        given:
+        def sessionManager = Stub(SessionManager)
+        sessionManager.get(STATE_ATTRIBUTE) >> OptInMFAState.promptingWithDigest("john",
+                ["My email": "email1"]).toAttribute()
+
+        def accountManager = Stub(AccountManager)
+        accountManager.getByUserName("john") >> AccountAttributes.fromMap(
+                ["id": "1234", "subject": "john", "secondFactors": ["My email": "email1", "Stolen phone": "sms1"]])
+
+        def configuration = new TestActionConfiguration(accountManager, null, sessionManager)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, new OptInMFAManagedObject(configuration))
+        def response = Mock(Response)
+
+        when:
+        handler.get(getRequestWithoutCookie(), response)
+
+        then:
+        thrown SecondFactorsInvalidException
+        0 * response.putViewData(*_)
+    }
+
+    def "should show the factors written by an earlier version while legacy session state is supported"()
+    {
+        given:
+        def sessionManager = Mock(SessionManager)
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        def configuration = new TestActionConfiguration(null, factory, sessionManager) {
+            @Override
+            boolean isLegacySessionStateSupported() {
+                return true
+            }
+        }
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, null,
+                new OptInMFAManagedObject(configuration))
+
+        def response = Mock(Response)
+
+        when:
+        def result = handler.get(getRequestWithoutCookie(), response)
+
+        then:
+        !result.isPresent()
+        1 * sessionManager.remove(AVAILABLE_SECOND_FACTORS_ATTRIBUTE) >> Attribute.of(AVAILABLE_SECOND_FACTORS_ATTRIBUTE,
+                MapAttributeValue.of(["My email": "email1", "My sms": "sms1"]))
+        1 * sessionManager.put({ it.getName().getValue() == STATE_ATTRIBUTE })
+        1 * response.putViewData("authenticators", { it.size() == 2 }, _)
+    }
+
+    def "should reject a client which exceeds its rate limit with an error of the server"()
+    {
+        given:
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        def configuration = new TestActionConfiguration(null, factory, sessionManager) {
+            @Override
+            boolean isRateLimitingEnabled() {
+                return true
+            }
+
+            @Override
+            int getClientRateLimitBurst() {
+                return 1
+            }
+        }
+        def exceptionFactory = Mock(ExceptionFactory)
+        def managedObject = new OptInMFAManagedObject(configuration)
+        def handler = new OptInMFAuthenticationActionHandler(sessionManager, configuration, exceptionFactory, managedObject)
+
+        def request = getRequestWithoutCookie()
+        request.getClientIpAddress() >> "192.0.2.1"
+
+        when:
+        handler.get(request, Stub(Response))
+        handler.get(request, Stub(Response))
+
+        then:
+        1 * exceptionFactory.forbiddenException(ErrorCode.ACCESS_DENIED, _) >> new IllegalStateException()
+        thrown IllegalStateException
+
+        cleanup:
+        managedObject.close()
+    }
+
+    private static def getHandler(factory, sessionManager)
+    {
+        def configuration = new TestActionConfiguration(null, factory, sessionManager)
+        new OptInMFAuthenticationActionHandler(sessionManager, configuration, null, new OptInMFAManagedObject(configuration))
+    }
+
+    private def getRequestWithoutCookie()
+    {
+        def request = Stub(Request)
+        def cookieJar = Stub(RequestCookies)
+        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> null
+        request.getCookies() >> cookieJar
+
+        request
+    }
+
+    private def getRequestWithRememberChoiceCookie(String value)
+    {
+        def request = Stub(Request)
+        def cookieJar = Stub(RequestCookies)
+        def cookie = Stub(Cookie)
+        cookie.getValue() >> value
+
+        cookieJar.getFirst(REMEMBER_CHOICE_COOKIE_NAME) >> cookie
+        request.getCookies() >> cookieJar
+
+        request
+    }
+
+    private static def promptingJohn()
+    {
+        OptInMFAState.prompting("john", ["My email": "email1", "My sms": "sms1"]).toAttribute()
+    }
+
+    private static long inOneHour()
+    {
+        System.currentTimeMillis().intdiv(1000) + 3600
     }
 }
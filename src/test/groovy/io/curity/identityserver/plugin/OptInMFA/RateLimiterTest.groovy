@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+import java.util.function.LongSupplier
+
+class RateLimiterTest extends Specification {
+
+    def now = 0L
+    LongSupplier clock = { now } as LongSupplier
+
+    def "should let a burst through and then limit to the sustained rate"()
+    {
+        given:
+        def limiter = new RateLimiter(60, 3, 100, clock)
+
+        expect:
+        (1..3).every { limiter.tryAcquire("john") }
+        !limiter.tryAcquire("john")
+        limiter.tryAcquire("jane")
+
+        when:
+        now += TimeUnit.SECONDS.toNanos(1)
+
+        then:
+        limiter.tryAcquire("john")
+        !limiter.tryAcquire("john")
+        limiter.rejectionCount == 2
+    }
+
+    def "should drop full buckets when tracking too many keys"()
+    {
+        given:
+        def limiter = new RateLimiter(60, 1, 2, clock)
+        limiter.tryAcquire("john")
+        limiter.tryAcquire("jane")
+
+        when:
+        now += TimeUnit.SECONDS.toNanos(1)
+        limiter.evictFullBuckets()
+        def allowed = limiter.tryAcquire("joe")
+
+        then:
+        allowed
+        limiter.size() == 1
+    }
+
+    def "should make room for new keys by dropping the least limited key while all tracked keys are being limited"()
+    {
+        given:
+        def limiter = new RateLimiter(60, 2, 2, clock)
+        limiter.tryAcquire("john")
+        limiter.tryAcquire("john")
+        limiter.tryAcquire("jane")
+
+        when:
+        limiter.evictFullBuckets()
+        def allowed = limiter.tryAcquire("joe")
+
+        then:
+        allowed
+        limiter.size() == 2
+        limiter.evictionCount == 1
+        limiter.rejectionCount == 0
+        !limiter.tryAcquire("john")
+    }
+
+    def "should give back a request which was let through"()
+    {
+        given:
+        def limiter = new RateLimiter(60, 1, 100, clock)
+
+        expect:
+        limiter.tryAcquire("john")
+        !limiter.tryAcquire("john")
+
+        when:
+        limiter.release("john")
+
+        then:
+        limiter.tryAcquire("john")
+    }
+}
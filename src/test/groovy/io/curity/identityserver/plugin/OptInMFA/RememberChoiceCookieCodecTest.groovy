@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import spock.lang.Specification
+
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class RememberChoiceCookieCodecTest extends Specification {
+
+    def now = 1_600_000_000L
+
+    def "should return the remembered ACR for the subject the cookie was issued to"()
+    {
+        given:
+        def codec = getCodec(["k1:secret1"])
+
+        when:
+        def value = codec.encode("john", "email1", now + 60)
+
+        then:
+        codec.verify(value, "john", now) == "email1"
+        codec.verify(value, "jane", now) == null
+    }
+
+    def "should not accept an expired cookie"()
+    {
+        given:
+        def codec = getCodec(["k1:secret1"])
+
+        expect:
+        codec.verify(codec.encode("john", "email1", now), "john", now) == null
+    }
+
+    def "should not accept a tampered or malformed cookie"()
+    {
+        given:
+        def codec = getCodec(["k1:secret1"])
+        def value = codec.encode("john", "email1", now + 60)
+
+        expect:
+        codec.verify(value.replace("email1", "sms1"), "john", now) == null
+        codec.verify(value.replace("k1.${now + 60}", "k1.${now + 120}"), "john", now) == null
+        codec.verify("email1", "john", now) == null
+        codec.verify("k1...email1", "john", now) == null
+        codec.verify(value.substring(0, value.lastIndexOf('.') + 1), "john", now) == null
+    }
+
+    def "should keep ACRs containing dots intact"()
+    {
+        given:
+        def codec = getCodec(["k1:secret1"])
+
+        expect:
+        codec.verify(codec.encode("john", "urn:se:curity:email.1", now + 60), "john", now) == "urn:se:curity:email.1"
+    }
+
+    def "should accept cookies signed with a previous key after rotation"()
+    {
+        given:
+        def oldCodec = getCodec(["k1:secret1"])
+        def rotatedCodec = getCodec(["k2:secret2", "k1:secret1"])
+        def retiredCodec = getCodec(["k2:secret2"])
+        def value = oldCodec.encode("john", "email1", now + 60)
+
+        expect:
+        rotatedCodec.verify(value, "john", now) == "email1"
+        retiredCodec.verify(value, "john", now) == null
+        rotatedCodec.encode("john", "email1", now + 60).startsWith("k2.")
+    }
+
+    def "should not accept cookies signed by another node when no keys are configured"()
+    {
+        given:
+        def codec = getCodec([])
+
+        expect:
+        codec.verify(codec.encode("john", "email1", now + 60), "john", now) == "email1"
+        getCodec([]).verify(codec.encode("john", "email1", now + 60), "john", now) == null
+    }
+
+    def "should reject keys which are not of the form key-id:secret"()
+    {
+        when:
+        getCodec([key])
+
+        then:
+        thrown IllegalArgumentException
+
+        where:
+        key << ["secret", ":secret", "k1:", "k.1:secret"]
+    }
+
+    def "should sign and verify cookies on many threads at once"()
+    {
+        given:
+        def codec = getCodec(["k1:secret1"])
+        def pool = Executors.newFixedThreadPool(8)
+
+        when:
+        def results = pool.invokeAll((1..200).collect { i ->
+            { ->
+                def subject = "user-$i".toString()
+                codec.verify(codec.encode(subject, "email1", now + 60), subject, now)
+            } as Callable<String>
+        })*.get()
+
+        then:
+        results.every { it == "email1" }
+
+        cleanup:
+        pool.shutdownNow()
+    }
+
+    private static RememberChoiceCookieCodec getCodec(List<String> keys)
+    {
+        RememberChoiceCookieCodec.create(new TestActionConfiguration(null, null, null) {
+            @Override
+            List<String> getRememberChoiceCookieSigningKeys() {
+                return keys
+            }
+        })
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2020 Curity AB
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package io.curity.identityserver.plugin.OptInMFA
+
+import se.curity.identityserver.sdk.NonEmptyList
+import se.curity.identityserver.sdk.errors.AuthenticatorNotConfiguredException
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptor
+import se.curity.identityserver.sdk.service.authenticationaction.AuthenticatorDescriptorFactory
+import spock.lang.Specification
+
+class StartupWarmUpTest extends Specification {
+
+    def "should resolve the configured authenticators on the first request only"()
+    {
+        given:
+        def factory = Mock(AuthenticatorDescriptorFactory)
+        def configuration = configurationWarmingUp(factory, ["email", "sms", "removed"], 2000)
+
+        when:
+        def managedObject = new OptInMFAManagedObject(configuration)
+
+        then:
+        0 * factory._
+
+        when:
+        def resolvedCount = managedObject.startupWarmUp.resolveAuthenticators()
+        managedObject.authenticatorModelRegistry.getDescriptor("email")
+        managedObject.authenticatorModelRegistry.getDescriptor("removed")
+
+        then:
+        resolvedCount == 2
+        1 * factory.getAuthenticatorDescriptors("email") >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        1 * factory.getAuthenticatorDescriptors("sms") >> NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        1 * factory.getAuthenticatorDescriptors("removed") >> { throw new AuthenticatorNotConfiguredException("") }
+
+        when:
+        managedObject.startupWarmUp.resolveAuthenticators()
+
+        then:
+        0 * factory._
+
+        cleanup:
+        managedObject.close()
+    }
+
+    def "should not hold up the first request for longer than the budget"()
+    {
+        given:
+        def factory = Stub(AuthenticatorDescriptorFactory)
+        factory.getAuthenticatorDescriptors(_) >> {
+            sleep(200)
+            NonEmptyList.of(Stub(AuthenticatorDescriptor))
+        }
+        def configuration = configurationWarmingUp(factory, (1..20).collect { "acr-$it".toString() }, 300)
+        def warmUp = StartupWarmUp.create(configuration, new AuthenticatorModelRegistry(factory, 300, 60),
+                RememberChoiceCookieCodec.create(configuration))
+
+        when:
+        def startTime = System.nanoTime()
+        def resolvedCount = warmUp.resolveAuthenticators()
+        def elapsedMillis = (System.nanoTime() - startTime).intdiv(1_000_000)
+
+        then:
+        resolvedCount < 20
+        elapsedMillis < 1000
+    }
+
+    private static def configurationWarmingUp(factory, List<String> acrs, int budgetMillis)
+    {
+        new TestActionConfiguration(null, factory, null) {
+            @Override
+            List<String> getWarmUpAcrs() {
+                return acrs
+            }
+
+            @Override
+            int getWarmUpBudgetMillis() {
+                return budgetMillis
+            }
+        }
+    }
+}
@@ -51,6 +51,221 @@ class TestActionConfiguration implements OptInMFAAuthenticationActionConfig
         return 30
     }
 
+    @Override
+    List<String> getRememberChoiceCookieSigningKeys() {
+        return []
+    }
+
+    @Override
+    Optional<String> getPrefetchedSecondFactorsAttribute() {
+        return Optional.empty()
+    }
+
+    @Override
+    boolean isSecondFactorsCacheEnabled() {
+        return false
+    }
+
+    @Override
+    int getSecondFactorsCacheMaxEntries() {
+        return 10000
+    }
+
+    @Override
+    int getSecondFactorsCacheTtlSeconds() {
+        return 60
+    }
+
+    @Override
+    Optional<String> getSecondFactorsVersionAttribute() {
+        return Optional.empty()
+    }
+
+    @Override
+    int getUnconfiguredAuthenticatorRetrySeconds() {
+        return 60
+    }
+
+    @Override
+    int getAuthenticatorTtlSeconds() {
+        return 300
+    }
+
+    @Override
+    int getFactorPageCacheMaxEntries() {
+        return 1000
+    }
+
+    @Override
+    List<String> getWarmUpAcrs() {
+        return []
+    }
+
+    @Override
+    int getWarmUpBudgetMillis() {
+        return 2000
+    }
+
+    @Override
+    OptInMFAAuthenticationActionConfig.SecondFactorSourceType getSecondFactorSource() {
+        return OptInMFAAuthenticationActionConfig.SecondFactorSourceType.ACCOUNT_ATTRIBUTE
+    }
+
+    @Override
+    Optional<String> getSecondFactorIndexFile() {
+        return Optional.empty()
+    }
+
+    @Override
+    int getSecondFactorIndexFileCheckIntervalSeconds() {
+        return 30
+    }
+
+    @Override
+    OptInMFAAuthenticationActionConfig.SecondFactorsEncoding getSessionSecondFactorsEncoding() {
+        return OptInMFAAuthenticationActionConfig.SecondFactorsEncoding.FACTORS
+    }
+
+    @Override
+    boolean isPromptSkippedForSingleFactor() {
+        return false
+    }
+
+    @Override
+    OptInMFAAuthenticationActionConfig.StepUpPolicy getStepUpPolicy() {
+        return OptInMFAAuthenticationActionConfig.StepUpPolicy.ANY_REGISTERED
+    }
+
+    @Override
+    List<String> getFactorStrengthRanking() {
+        return []
+    }
+
+    @Override
+    List<String> getSecondFactorAcrs() {
+        return []
+    }
+
+    @Override
+    OptInMFAAuthenticationActionConfig.FactorOrdering getFactorOrdering() {
+        return OptInMFAAuthenticationActionConfig.FactorOrdering.NAME
+    }
+
+    @Override
+    int getAutoSelectFactorAfterUses() {
+        return 0
+    }
+
+    @Override
+    int getFactorUsageMaxUsers() {
+        return 100000
+    }
+
+    @Override
+    int getFactorUsageRetentionDays() {
+        return 90
+    }
+
+    @Override
+    boolean isAccountLookupGuardEnabled() {
+        return false
+    }
+
+    @Override
+    int getAccountLookupTimeoutMillis() {
+        return 500
+    }
+
+    @Override
+    int getAccountLookupMaxPending() {
+        return 64
+    }
+
+    @Override
+    int getAccountLookupCircuitBreakerFailureThreshold() {
+        return 5
+    }
+
+    @Override
+    int getAccountLookupCircuitBreakerOpenSeconds() {
+        return 30
+    }
+
+    @Override
+    OptInMFAAuthenticationActionConfig.AccountLookupFallback getAccountLookupFallback() {
+        return OptInMFAAuthenticationActionConfig.AccountLookupFallback.FAIL_CLOSED
+    }
+
+    @Override
+    int getAccountLookupLastKnownMaxAgeSeconds() {
+        return 86400
+    }
+
+    @Override
+    boolean isRateLimitingEnabled() {
+        return false
+    }
+
+    @Override
+    int getSubjectRateLimitPerMinute() {
+        return 30
+    }
+
+    @Override
+    int getSubjectRateLimitBurst() {
+        return 10
+    }
+
+    @Override
+    int getTransactionRateLimitPerMinute() {
+        return 20
+    }
+
+    @Override
+    int getTransactionRateLimitBurst() {
+        return 10
+    }
+
+    @Override
+    int getClientRateLimitPerMinute() {
+        return 120
+    }
+
+    @Override
+    int getClientRateLimitBurst() {
+        return 30
+    }
+
+    @Override
+    int getRateLimitMaxTrackedKeys() {
+        return 100000
+    }
+
+    @Override
+    boolean isMetricsEnabled() {
+        return false
+    }
+
+    @Override
+    int getMetricsLogIntervalSeconds() {
+        return 0
+    }
+
+    @Override
+    int getTraceSamplingPercentage() {
+        return 0
+    }
+
+    @Override
+    int getTraceBufferSize() {
+        return 1024
+    }
+
+    @Override
+    boolean isLegacySessionStateSupported() {
+        return false
+    }
+
     @Override
     String id() {
         return ""